@@ -0,0 +1,410 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.joda.time.DateTime;
+
+/**
+ * Binary layout of snapshot files.
+ *
+ * The file starts with a magic and a version byte, and ends with a CRC32 of everything before it.
+ * Numbers are varints, file timestamps are whole seconds, and paths follow the folder tree, so that each path
+ * is stored as the length of the prefix it shares with the previous path plus the rest of it.
+ *
+ * @author Alex Altoukhov
+ */
+class BinarySnapshotFormat {
+
+    private static final byte[] MAGIC = {'S', 'V', 'S', 'N'};
+    private static final int VERSION = 1;
+
+    public static boolean isBinary(byte[] header, int length) {
+        if (length < MAGIC.length) return false;
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) return false;
+        }
+
+        return true;
+    }
+
+    public static int headerSize() {
+        return MAGIC.length;
+    }
+
+    public static void write(Snapshot snapshot, OutputStream stream) throws IOException {
+
+        Writer out = new Writer(stream);
+        out.writeBytes(MAGIC, MAGIC.length);
+        out.writeVarLong(VERSION);
+
+        out.writeVarLong(snapshot.getTimestamp().getMillis());
+        out.writeVarLong((snapshot.getFullScanTimestamp() == null)? 0 : snapshot.getFullScanTimestamp().getMillis() + 1);
+        out.writeOptionalString(snapshot.getScanSettings());
+
+        // Folders and files are written in the order of the path tree, which keeps shared prefixes long
+        PathSet dirs = snapshot.getDirectoryNodes();
+        int[] nodes = dirs.sortedNodes();
+
+        out.writeVarLong(nodes.length);
+        for (int node : nodes) {
+            out.writePath(dirs.getPaths().getPath(node));
+        }
+
+        Map<String, Long> dirTimestamps = snapshot.getDirectoryTimestamps();
+        out.writeVarLong((dirTimestamps == null)? 0 : dirTimestamps.size() + 1);
+
+        if (dirTimestamps != null) {
+            List<String> timedDirs = new ArrayList<>(dirTimestamps.keySet());
+            Collections.sort(timedDirs);
+
+            out.resetPath();
+            for (String dir : timedDirs) {
+                out.writePath(dir);
+                out.writeSignedVarLong(dirTimestamps.get(dir));
+            }
+        }
+
+        CompactFileMap files = snapshot.getFileColumns();
+        int[] slots = files.sortedSlots();
+
+        out.writeVarLong(slots.length);
+        out.resetPath();
+
+        for (int slot : slots) {
+            FileSnapshot file = files.getFile(slot);
+            String path = file.getRelativePath();
+            out.writePath(path);
+
+            // File name is nearly always the last part of the path
+            String name = file.getFileName();
+            out.writeOptionalString(name.equals(path.substring(path.lastIndexOf('/') + 1))? null : name);
+
+            out.writeVarLong(file.getFileSize());
+            out.writeSignedVarLong(file.getModifiedTimestamp().getMillis() / 1000);
+        }
+
+        out.writeChecksum();
+        out.flush();
+    }
+
+    // The stream has to be positioned right after the magic
+    public static Snapshot read(InputStream stream) throws IOException {
+
+        Reader in = new Reader(stream);
+        in.update(MAGIC, MAGIC.length);
+
+        long version = in.readVarLong();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        DateTime timestamp = new DateTime(in.readVarLong());
+        long fullScanTimestamp = in.readVarLong();
+        String scanSettings = in.readOptionalString();
+
+        // Folders of files and the snapshot's folders share one path dictionary
+        PathDictionary paths = new PathDictionary();
+
+        int dirCount = in.readCount();
+        PathSet dirs = new PathSet(paths);
+
+        for (int i = 0; i < dirCount; i++) {
+            dirs.add(in.readPath());
+        }
+
+        Map<String, Long> dirTimestamps = null;
+        int timedDirCount = in.readCount() - 1;
+
+        if (timedDirCount >= 0) {
+            dirTimestamps = new HashMap<>(capacityFor(timedDirCount));
+
+            in.resetPath();
+            for (int i = 0; i < timedDirCount; i++) {
+                dirTimestamps.put(in.readPath(), in.readSignedVarLong());
+            }
+        }
+
+        int fileCount = in.readCount();
+        CompactFileMap files = new CompactFileMap(paths);
+
+        in.resetPath();
+        for (int i = 0; i < fileCount; i++) {
+            String path = in.readPath();
+            String name = in.readOptionalString();
+
+            if (name == null) {
+                name = path.substring(path.lastIndexOf('/') + 1);
+            }
+
+            long size = in.readVarLong();
+            DateTime modified = new DateTime(in.readSignedVarLong() * 1000);
+
+            files.put(path, new FileSnapshot(name, size, modified, path));
+        }
+
+        in.verifyChecksum();
+
+        Snapshot snapshot = new Snapshot(files, dirs, timestamp);
+        snapshot.setFullScanTimestamp((fullScanTimestamp == 0)? null : new DateTime(fullScanTimestamp - 1));
+        snapshot.setScanSettings(scanSettings);
+        snapshot.setDirectoryTimestamps(dirTimestamps);
+
+        return snapshot;
+    }
+
+    private static int capacityFor(int count) {
+        return (int)Math.min(Integer.MAX_VALUE, count / 3L * 4 + 16);
+    }
+
+    private static class Writer {
+
+        private final OutputStream out;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position = 0;
+
+        private byte[] previousPath = new byte[0];
+
+        public Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        public void resetPath() {
+            previousPath = new byte[0];
+        }
+
+        public void writePath(String path) throws IOException {
+            byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+
+            int shared = 0;
+            int limit = Math.min(bytes.length, previousPath.length);
+            while ((shared < limit) && (bytes[shared] == previousPath[shared])) {
+                shared++;
+            }
+
+            writeVarLong(shared);
+            writeVarLong(bytes.length - shared);
+            writeBytes(bytes, shared, bytes.length - shared);
+
+            previousPath = bytes;
+        }
+
+        public void writeOptionalString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1);
+            writeBytes(bytes, bytes.length);
+        }
+
+        public void writeSignedVarLong(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        public void writeVarLong(long value) throws IOException {
+            if (position + 10 > buffer.length) flushBuffer();
+
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            buffer[position++] = (byte)value;
+        }
+
+        public void writeBytes(byte[] bytes, int length) throws IOException {
+            writeBytes(bytes, 0, length);
+        }
+
+        public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+            if (position + length > buffer.length) flushBuffer();
+
+            if (length > buffer.length) {
+                crc.update(bytes, offset, length);
+                out.write(bytes, offset, length);
+                return;
+            }
+
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        public void writeChecksum() throws IOException {
+            flushBuffer();
+
+            long value = crc.getValue();
+            out.write(new byte[] {(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value});
+        }
+
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            crc.update(buffer, 0, position);
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private static class Reader {
+
+        private final InputStream in;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position = 0;
+        private int limit = 0;
+
+        private byte[] path = new byte[256];
+        private int pathLength = 0;
+
+        public Reader(InputStream in) {
+            this.in = in;
+        }
+
+        public void update(byte[] bytes, int length) {
+            crc.update(bytes, 0, length);
+        }
+
+        public void resetPath() {
+            pathLength = 0;
+        }
+
+        public String readPath() throws IOException {
+            int shared = readCount();
+            int length = readCount();
+
+            if (shared > pathLength) {
+                throw new IOException("Corrupted snapshot path");
+            }
+
+            if (shared + length > path.length) {
+                byte[] larger = new byte[Math.max(path.length * 2, shared + length)];
+                System.arraycopy(path, 0, larger, 0, shared);
+                path = larger;
+            }
+
+            readBytes(path, shared, length);
+            pathLength = shared + length;
+
+            return new String(path, 0, pathLength, StandardCharsets.UTF_8);
+        }
+
+        public String readOptionalString() throws IOException {
+            int length = readCount() - 1;
+            if (length < 0) return null;
+
+            byte[] bytes = new byte[length];
+            readBytes(bytes, 0, length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public int readCount() throws IOException {
+            long value = readVarLong();
+
+            if ((value < 0) || (value > Integer.MAX_VALUE)) {
+                throw new IOException("Corrupted snapshot count");
+            }
+
+            return (int)value;
+        }
+
+        public long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public long readVarLong() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long)(b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) return value;
+            }
+
+            throw new IOException("Corrupted snapshot number");
+        }
+
+        public void verifyChecksum() throws IOException {
+            crc.update(buffer, 0, position);
+
+            byte[] expected = new byte[4];
+            System.arraycopy(buffer, position, expected, 0, Math.min(4, limit - position));
+
+            int read = limit - position;
+            while (read < 4) {
+                int count = in.read(expected, read, 4 - read);
+                if (count < 0) throw new EOFException("Snapshot checksum is missing");
+                read += count;
+            }
+
+            long value = ((expected[0] & 0xFFL) << 24) | ((expected[1] & 0xFFL) << 16) | ((expected[2] & 0xFFL) << 8) | (expected[3] & 0xFFL);
+            if (value != crc.getValue()) {
+                throw new IOException("Snapshot checksum doesn't match, the file is corrupted");
+            }
+        }
+
+        private byte readByte() throws IOException {
+            if (position == limit) fill();
+            return buffer[position++];
+        }
+
+        private void readBytes(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (position == limit) fill();
+
+                int count = Math.min(length, limit - position);
+                System.arraycopy(buffer, position, bytes, offset, count);
+
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        // Bytes are added to the checksum as the buffer is refilled, the trailing checksum is excluded in verifyChecksum()
+        private void fill() throws IOException {
+            crc.update(buffer, 0, limit);
+
+            position = 0;
+            limit = in.read(buffer);
+
+            if (limit <= 0) {
+                limit = 0;
+                throw new EOFException("Snapshot file is truncated");
+            }
+        }
+    }
+}
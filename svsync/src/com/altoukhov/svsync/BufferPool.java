@@ -0,0 +1,138 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Transfer buffers shared by all file spaces, limited by a global memory budget.
+ *
+ * A transfer waits for its first buffer until it fits into the budget, and takes more
+ * buffers only while the budget allows. A buffer larger than the whole budget is granted
+ * once no other buffer is in use. New transfers wait in awaitCapacity() while the budget
+ * is exhausted, or while running transfers are waiting for buffers.
+ *
+ * @author Alex Altoukhov
+ */
+public class BufferPool {
+
+    public static final long DEFAULT_BUDGET = 128 * 1024 * 1024;
+    public static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    private static final BufferPool shared = new BufferPool(DEFAULT_BUDGET);
+
+    private long budget;
+    private long usedBytes = 0;
+    private long cachedBytes = 0;
+    private int waitingCount = 0;
+    private final Map<Integer, ArrayDeque<byte[]>> cache = new HashMap<>();
+
+    public BufferPool(long budget) {
+        this.budget = budget;
+    }
+
+    public static BufferPool getShared() {
+        return shared;
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        notifyAll();
+    }
+
+    public synchronized byte[] acquire(int size) throws InterruptedException {
+        makeRoom(size);
+
+        waitingCount++;
+        try {
+            while ((usedBytes > 0) && (usedBytes + size > budget)) {
+                wait();
+                makeRoom(size);
+            }
+        }
+        finally {
+            if (--waitingCount == 0) notifyAll();
+        }
+
+        return take(size);
+    }
+
+    public synchronized byte[] tryAcquire(int size) {
+        makeRoom(size);
+
+        if (usedBytes + size > budget) {
+            return null;
+        }
+
+        return take(size);
+    }
+
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null) return;
+
+        usedBytes -= buffer.length;
+
+        // Keep the buffer for reuse only while it fits into the budget
+        if (usedBytes + cachedBytes + buffer.length <= budget) {
+            ArrayDeque<byte[]> buffers = cache.get(buffer.length);
+            if (buffers == null) {
+                buffers = new ArrayDeque<>();
+                cache.put(buffer.length, buffers);
+            }
+
+            buffers.push(buffer);
+            cachedBytes += buffer.length;
+        }
+
+        notifyAll();
+    }
+
+    public synchronized void awaitCapacity() throws InterruptedException {
+        while ((usedBytes >= budget) || (waitingCount > 0)) {
+            wait();
+        }
+    }
+
+    private byte[] take(int size) {
+        usedBytes += size;
+
+        ArrayDeque<byte[]> buffers = cache.get(size);
+        if ((buffers != null) && !buffers.isEmpty()) {
+            cachedBytes -= size;
+            return buffers.pop();
+        }
+
+        return new byte[size];
+    }
+
+    private void makeRoom(int size) {
+
+        ArrayDeque<byte[]> sameSize = cache.get(size);
+        if ((sameSize != null) && !sameSize.isEmpty()) return;
+
+        // Drop cached buffers of other sizes, so that they don't count against the budget
+        Iterator<Map.Entry<Integer, ArrayDeque<byte[]>>> entries = cache.entrySet().iterator();
+        while ((usedBytes + cachedBytes + size > budget) && entries.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<byte[]>> entry = entries.next();
+            cachedBytes -= (long)entry.getKey() * entry.getValue().size();
+            entries.remove();
+        }
+    }
+}
@@ -0,0 +1,790 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.joda.time.DateTime;
+
+/**
+ * Files of a snapshot, kept in primitive columns rather than as objects.
+ *
+ * Every file takes a slot: its folder's node in a PathDictionary, the offset and length of its name in
+ * a shared byte arena, its size and its timestamp in seconds. Paths are built only when asked for.
+ * FileSnapshot objects are created only when files are read through the Map interface. Files keep
+ * the order they were added in, like in a LinkedHashMap.
+ *
+ * Files of a mapped snapshot file are read in place and are decoded only when touched. Files added,
+ * changed or removed since are kept in the columns, on top of the mapped ones.
+ *
+ * @author Alex Altoukhov
+ */
+public class CompactFileMap extends AbstractMap<String, FileSnapshot> {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int REMOVED = -1;
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    private final PathDictionary paths;
+
+    private int[] folderOf;
+    private int[] nameOffsets;
+    private int[] nameLengths;
+    private long[] sizes;
+    private long[] modifiedSeconds;
+
+    // File names, which are not the last part of their paths
+    private final Map<Integer, String> otherNames = new HashMap<>();
+
+    private byte[] arena;
+    private int arenaSize = 0;
+
+    // Hash chains of slots, with slot numbers stored as slot + 1, so that 0 ends a chain
+    private int[] buckets;
+    private int[] next;
+
+    private int slotCount = 0;
+    private int size = 0;
+    private int modCount = 0;
+
+    // Slots of each folder, chained both ways with slot numbers stored as slot + 1. Built only once asked for
+    private int[] folderHeads;
+    private int[] folderNext;
+    private int[] folderPrevious;
+
+    // Mapped files are referred to as ~record, so that slots of both kinds fit into one int
+    private MappedFiles base;
+    private BitSet baseRemoved;
+    private int baseRemovedCount = 0;
+
+    // Files of a folder come one after another in a diff, so the last order of folders is kept
+    private int lastFolder = -1;
+    private PathDictionary lastOtherPaths;
+    private int lastOtherFolder = -1;
+    private int lastFolderOrder;
+
+    public CompactFileMap() {
+        this(new PathDictionary());
+    }
+
+    public CompactFileMap(Map<String, FileSnapshot> files) {
+        this(new PathDictionary(), files);
+    }
+
+    // Folders are added to the given dictionary, which may be shared with the snapshot's folders
+    CompactFileMap(PathDictionary paths) {
+        this.paths = paths;
+        allocate(INITIAL_CAPACITY, INITIAL_CAPACITY * 16);
+    }
+
+    CompactFileMap(PathDictionary paths, Map<String, FileSnapshot> files) {
+        this.paths = paths;
+        allocate(Math.max(INITIAL_CAPACITY, files.size()), Math.max(INITIAL_CAPACITY, files.size()) * 16);
+        putAll(files);
+    }
+
+    // Files of the mapped file are taken as they are, the dictionary has to have the file's folders
+    CompactFileMap(PathDictionary paths, MappedFiles base) {
+        this(paths);
+        this.base = base;
+        this.baseRemoved = new BitSet();
+    }
+
+    PathDictionary getPaths() {
+        return paths;
+    }
+
+    @Override
+    public int size() {
+        return (base == null)? size : size + base.size() - baseRemovedCount;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (key instanceof String) && (find((String)key) != MISSING);
+    }
+
+    @Override
+    public FileSnapshot get(Object key) {
+        if (!(key instanceof String)) return null;
+
+        int slot = find((String)key);
+        return (slot == MISSING)? null : getFile(slot);
+    }
+
+    @Override
+    public FileSnapshot put(String path, FileSnapshot file) {
+
+        int slot = find(path);
+        FileSnapshot previous = null;
+
+        if (slot >= 0) {
+            previous = getFile(slot);
+            setName(slot, path, file.getFileName());
+        }
+        else {
+            // Mapped files are read-only, a changed one is hidden and added again
+            if (slot != MISSING) {
+                previous = getFile(slot);
+                removeRecord(~slot);
+            }
+
+            slot = addSlot(path, file.getFileName());
+        }
+
+        sizes[slot] = file.getFileSize();
+        modifiedSeconds[slot] = file.getModifiedTimestamp().getMillis() / 1000;
+
+        return previous;
+    }
+
+    @Override
+    public FileSnapshot remove(Object key) {
+        if (!(key instanceof String)) return null;
+
+        int slot = find((String)key);
+        if (slot == MISSING) return null;
+
+        FileSnapshot previous = getFile(slot);
+
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+        else {
+            removeRecord(~slot);
+        }
+
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        base = null;
+        baseRemoved = null;
+        baseRemovedCount = 0;
+        otherNames.clear();
+        allocate(INITIAL_CAPACITY, INITIAL_CAPACITY * 16);
+        arenaSize = 0;
+        slotCount = 0;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, FileSnapshot>> entrySet() {
+        return new AbstractSet<Map.Entry<String, FileSnapshot>>() {
+            @Override
+            public Iterator<Map.Entry<String, FileSnapshot>> iterator() {
+                return new SlotIterator<Map.Entry<String, FileSnapshot>>() {
+                    @Override
+                    protected Map.Entry<String, FileSnapshot> get(int slot) {
+                        FileSnapshot file = getFile(slot);
+                        return new AbstractMap.SimpleImmutableEntry<>(file.getRelativePath(), file);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactFileMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new SlotIterator<String>() {
+                    @Override
+                    protected String get(int slot) {
+                        return getPath(slot);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactFileMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+        };
+    }
+
+    // Slots of all files, ordered by folder as in PathDictionary.compare(), then by name. Any two maps order the same files the same way
+    int[] sortedSlots() {
+
+        int[] folderRanks = paths.ranks();
+
+        long[] keys = new long[size];
+        int count = 0;
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (folderOf[slot] != REMOVED) {
+                keys[count++] = ((long)folderRanks[folderOf[slot]] << 32) | slot;
+            }
+        }
+
+        Arrays.sort(keys);
+
+        int[] slots = new int[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = (int)keys[i];
+        }
+
+        // Files of each folder are together now, and are sorted by name within the folder
+        int[] buffer = new int[size];
+        for (int start = 0; start < size; ) {
+            int end = start + 1;
+            while ((end < size) && (folderOf[slots[end]] == folderOf[slots[start]])) {
+                end++;
+            }
+
+            sortByName(slots, buffer, start, end);
+            start = end;
+        }
+
+        if (base == null) return slots;
+
+        // Mapped files are sorted already, the columns' files are merged into them
+        int[] merged = new int[size()];
+        int record = nextRecord(0);
+        int slot = 0;
+
+        for (int i = 0; i < merged.length; i++) {
+            boolean isRecordFirst = (slot == slots.length) || ((record < base.size()) &&
+                    (compare(~record, slots[slot], folderRanks) < 0));
+
+            if (isRecordFirst) {
+                merged[i] = ~record;
+                record = nextRecord(record + 1);
+            }
+            else {
+                merged[i] = slots[slot++];
+            }
+        }
+
+        return merged;
+    }
+
+    int compare(int slot, CompactFileMap other, int otherSlot) {
+        int folder = getFolder(slot);
+        int otherFolder = other.getFolder(otherSlot);
+
+        if ((folder != lastFolder) || (other.paths != lastOtherPaths) || (otherFolder != lastOtherFolder)) {
+            lastFolder = folder;
+            lastOtherPaths = other.paths;
+            lastOtherFolder = otherFolder;
+            lastFolderOrder = paths.compare(folder, other.paths, otherFolder);
+        }
+
+        return (lastFolderOrder != 0)? lastFolderOrder : compareNames(slot, other, otherSlot);
+    }
+
+    // Tells whether the file in the slot equals the file in the other map's slot, in the sense of FileSnapshot.equals()
+    boolean isSameFile(int slot, CompactFileMap other, int otherSlot) {
+        if ((getSize(slot) != other.getSize(otherSlot)) || (getModifiedSeconds(slot) != other.getModifiedSeconds(otherSlot))) {
+            return false;
+        }
+
+        if (!hasOtherNames() && !other.hasOtherNames()) {
+            return compareNames(slot, other, otherSlot) == 0;
+        }
+
+        return getFileName(slot).equals(other.getFileName(otherSlot));
+    }
+
+    // Adds files right in the folder to the result, without going through other files
+    void collectFiles(int folder, Collection<FileSnapshot> result) {
+
+        if (base != null) {
+            for (int record = base.findFirst(folder); (record < base.size()) && (base.getFolder(record) == folder); record++) {
+                if (!baseRemoved.get(record)) result.add(getFile(~record));
+            }
+        }
+
+        if (folderHeads == null) indexFolders();
+        if (folder >= folderHeads.length) return;
+
+        for (int slot = folderHeads[folder] - 1; slot >= 0; slot = folderNext[slot] - 1) {
+            result.add(getFile(slot));
+        }
+    }
+
+    // Keys of all files for FileKeySet, in no particular order
+    long[] fileKeys() {
+
+        long[] keys = new long[size()];
+        int count = 0;
+
+        if (base != null) {
+            for (int record = nextRecord(0); record < base.size(); record = nextRecord(record + 1)) {
+                keys[count++] = fileKey(~record);
+            }
+        }
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (folderOf[slot] != REMOVED) {
+                keys[count++] = fileKey(slot);
+            }
+        }
+
+        return keys;
+    }
+
+    private long fileKey(int slot) {
+        String name = getOtherName(slot);
+        byte[] nameBytes = (name != null)? name.getBytes(StandardCharsets.UTF_8) : getNameBytes(slot);
+
+        return FileKeySet.keyOf(nameBytes, getSize(slot), getModifiedSeconds(slot));
+    }
+
+    FileSnapshot getFile(int slot) {
+        return new FileSnapshot(getFileName(slot), getSize(slot), new DateTime(getModifiedSeconds(slot) * 1000), getPath(slot));
+    }
+
+    String getPath(int slot) {
+        String name = getName(slot);
+        int folder = getFolder(slot);
+
+        return (folder == PathDictionary.ROOT)? name : paths.getPath(folder) + "/" + name;
+    }
+
+    int getFolder(int slot) {
+        return (slot >= 0)? folderOf[slot] : base.getFolder(~slot);
+    }
+
+    long getSize(int slot) {
+        return (slot >= 0)? sizes[slot] : base.getSize(~slot);
+    }
+
+    long getModifiedSeconds(int slot) {
+        return (slot >= 0)? modifiedSeconds[slot] : base.getModifiedSeconds(~slot);
+    }
+
+    byte[] getNameBytes(int slot) {
+        return (slot >= 0)? Arrays.copyOfRange(arena, nameOffsets[slot], nameOffsets[slot] + nameLengths[slot]) : base.getNameBytes(~slot);
+    }
+
+    // Returns the file name, when it's not the last part of the path
+    String getOtherName(int slot) {
+        if (slot < 0) return base.getOtherName(~slot);
+        return otherNames.isEmpty()? null : otherNames.get(slot);
+    }
+
+    private String getName(int slot) {
+        return (slot >= 0)? new String(arena, nameOffsets[slot], nameLengths[slot], StandardCharsets.UTF_8) : base.getName(~slot);
+    }
+
+    private String getFileName(int slot) {
+        String name = getOtherName(slot);
+        return (name != null)? name : getName(slot);
+    }
+
+    private boolean hasOtherNames() {
+        return !otherNames.isEmpty() || ((base != null) && base.hasOtherNames());
+    }
+
+    private int getNameLength(int slot) {
+        return (slot >= 0)? nameLengths[slot] : base.getNameLength(~slot);
+    }
+
+    private byte getNameByte(int slot, int index) {
+        return (slot >= 0)? arena[nameOffsets[slot] + index] : base.getNameByte(~slot, index);
+    }
+
+    private int compareNames(int slot, CompactFileMap other, int otherSlot) {
+        if ((slot >= 0) && (otherSlot >= 0)) {
+            return compareBytes(arena, nameOffsets[slot], nameLengths[slot], other.arena, other.nameOffsets[otherSlot], other.nameLengths[otherSlot]);
+        }
+
+        int length = getNameLength(slot);
+        int otherLength = other.getNameLength(otherSlot);
+
+        for (int i = 0; i < Math.min(length, otherLength); i++) {
+            int order = (getNameByte(slot, i) & 0xFF) - (other.getNameByte(otherSlot, i) & 0xFF);
+            if (order != 0) return order;
+        }
+
+        return length - otherLength;
+    }
+
+    // Order of two files of this map, with ranks of folders at hand
+    private int compare(int slot, int otherSlot, int[] folderRanks) {
+        int order = Integer.compare(folderRanks[getFolder(slot)], folderRanks[getFolder(otherSlot)]);
+        return (order != 0)? order : compareNames(slot, this, otherSlot);
+    }
+
+    private int nextRecord(int from) {
+        while ((from < base.size()) && baseRemoved.get(from)) {
+            from++;
+        }
+
+        return from;
+    }
+
+    private void removeRecord(int record) {
+        baseRemoved.set(record);
+        baseRemovedCount++;
+        modCount++;
+    }
+
+    private int find(String path) {
+
+        int split = path.lastIndexOf('/');
+        byte[] name = path.substring(split + 1).getBytes(StandardCharsets.UTF_8);
+        int folder = paths.find(path, Math.max(split, 0));
+        if (folder < 0) return MISSING;
+
+        int hash = hash(folder, name, 0, name.length);
+
+        for (int slot = buckets[hash & (buckets.length - 1)] - 1; slot >= 0; slot = next[slot] - 1) {
+            if ((folderOf[slot] == folder) && (compareBytes(arena, nameOffsets[slot], nameLengths[slot], name, 0, name.length) == 0)) {
+                return slot;
+            }
+        }
+
+        if (base != null) {
+            int record = base.find(folder, name);
+            if ((record >= 0) && !baseRemoved.get(record)) return ~record;
+        }
+
+        return MISSING;
+    }
+
+    private int addSlot(String path, String fileName) {
+
+        if (slotCount == folderOf.length) {
+            // Reuse removed slots before growing
+            if (slotCount - size > slotCount / 4) {
+                compact();
+            }
+            else {
+                grow(slotCount * 2);
+            }
+        }
+
+        int split = path.lastIndexOf('/');
+        int slot = slotCount++;
+        folderOf[slot] = paths.add(path, Math.max(split, 0));
+        nameLengths[slot] = 0;
+        setName(slot, path, fileName);
+
+        link(slot);
+        linkFolder(slot);
+        size++;
+        modCount++;
+
+        return slot;
+    }
+
+    private void setName(int slot, String path, String fileName) {
+
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+        if ((nameLengths[slot] != bytes.length) || (compareBytes(arena, nameOffsets[slot], nameLengths[slot], bytes, 0, bytes.length) != 0)) {
+            if (arenaSize + bytes.length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + bytes.length));
+            }
+
+            System.arraycopy(bytes, 0, arena, arenaSize, bytes.length);
+            nameOffsets[slot] = arenaSize;
+            nameLengths[slot] = bytes.length;
+            arenaSize += bytes.length;
+        }
+
+        if (name.equals(fileName)) {
+            if (!otherNames.isEmpty()) otherNames.remove(slot);
+        }
+        else {
+            otherNames.put(slot, fileName);
+        }
+    }
+
+    private void removeSlot(int slot) {
+        unlink(slot);
+        unlinkFolder(slot);
+
+        folderOf[slot] = REMOVED;
+        if (!otherNames.isEmpty()) otherNames.remove(slot);
+
+        size--;
+        modCount++;
+    }
+
+    private void link(int slot) {
+        int bucket = slotHash(slot) & (buckets.length - 1);
+        next[slot] = buckets[bucket];
+        buckets[bucket] = slot + 1;
+    }
+
+    private void unlink(int slot) {
+        int bucket = slotHash(slot) & (buckets.length - 1);
+
+        if (buckets[bucket] == slot + 1) {
+            buckets[bucket] = next[slot];
+            return;
+        }
+
+        for (int current = buckets[bucket] - 1; current >= 0; current = next[current] - 1) {
+            if (next[current] == slot + 1) {
+                next[current] = next[slot];
+                return;
+            }
+        }
+    }
+
+    // Moves live slots together, keeping their order, and drops names of removed files from the arena
+    private void compact() {
+
+        byte[] liveArena = new byte[Math.max(INITIAL_CAPACITY, arenaSize)];
+        int liveArenaSize = 0;
+        Map<Integer, String> liveNames = new HashMap<>();
+
+        int live = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (folderOf[slot] == REMOVED) continue;
+
+            System.arraycopy(arena, nameOffsets[slot], liveArena, liveArenaSize, nameLengths[slot]);
+
+            folderOf[live] = folderOf[slot];
+            nameOffsets[live] = liveArenaSize;
+            nameLengths[live] = nameLengths[slot];
+            sizes[live] = sizes[slot];
+            modifiedSeconds[live] = modifiedSeconds[slot];
+
+            String name = otherNames.isEmpty()? null : otherNames.get(slot);
+            if (name != null) liveNames.put(live, name);
+
+            liveArenaSize += nameLengths[slot];
+            live++;
+        }
+
+        arena = liveArena;
+        arenaSize = liveArenaSize;
+        otherNames.clear();
+        otherNames.putAll(liveNames);
+        slotCount = live;
+
+        rehash(buckets.length);
+        if (folderHeads != null) indexFolders();
+    }
+
+    private void grow(int capacity) {
+        folderOf = Arrays.copyOf(folderOf, capacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+        nameLengths = Arrays.copyOf(nameLengths, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        modifiedSeconds = Arrays.copyOf(modifiedSeconds, capacity);
+        next = Arrays.copyOf(next, capacity);
+
+        if (folderHeads != null) {
+            folderNext = Arrays.copyOf(folderNext, capacity);
+            folderPrevious = Arrays.copyOf(folderPrevious, capacity);
+        }
+
+        rehash(Integer.highestOneBit(capacity) * 2);
+    }
+
+    private void rehash(int bucketCount) {
+        buckets = new int[bucketCount];
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (folderOf[slot] != REMOVED) link(slot);
+        }
+    }
+
+    private void allocate(int capacity, int arenaCapacity) {
+        folderOf = new int[capacity];
+        nameOffsets = new int[capacity];
+        nameLengths = new int[capacity];
+        sizes = new long[capacity];
+        modifiedSeconds = new long[capacity];
+        next = new int[capacity];
+        buckets = new int[Integer.highestOneBit(capacity) * 2];
+        arena = new byte[arenaCapacity];
+
+        folderHeads = null;
+        folderNext = null;
+        folderPrevious = null;
+    }
+
+    private void indexFolders() {
+        folderHeads = new int[paths.size()];
+        folderNext = new int[folderOf.length];
+        folderPrevious = new int[folderOf.length];
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (folderOf[slot] != REMOVED) linkFolder(slot);
+        }
+    }
+
+    private void linkFolder(int slot) {
+        if (folderHeads == null) return;
+
+        int folder = folderOf[slot];
+        if (folder >= folderHeads.length) {
+            folderHeads = Arrays.copyOf(folderHeads, Math.max(folder + 1, paths.size()));
+        }
+
+        int head = folderHeads[folder];
+        folderNext[slot] = head;
+        folderPrevious[slot] = 0;
+
+        if (head > 0) folderPrevious[head - 1] = slot + 1;
+        folderHeads[folder] = slot + 1;
+    }
+
+    private void unlinkFolder(int slot) {
+        if (folderHeads == null) return;
+
+        int nextSlot = folderNext[slot];
+        int previousSlot = folderPrevious[slot];
+
+        if (previousSlot > 0) {
+            folderNext[previousSlot - 1] = nextSlot;
+        }
+        else {
+            folderHeads[folderOf[slot]] = nextSlot;
+        }
+
+        if (nextSlot > 0) folderPrevious[nextSlot - 1] = previousSlot;
+    }
+
+    private int slotHash(int slot) {
+        return hash(folderOf[slot], arena, nameOffsets[slot], nameLengths[slot]);
+    }
+
+    private static int hash(int folder, byte[] name, int offset, int length) {
+        int hash = folder;
+
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + name[i];
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+
+    // Unsigned byte order of UTF-8 names, which is the code point order of the names
+    private static int compareBytes(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        int length = Math.min(aLength, bLength);
+
+        for (int i = 0; i < length; i++) {
+            int order = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+            if (order != 0) return order;
+        }
+
+        return aLength - bLength;
+    }
+
+    private void sortByName(int[] slots, int[] buffer, int start, int end) {
+        if (end - start < 2) return;
+
+        int middle = (start + end) >>> 1;
+        sortByName(slots, buffer, start, middle);
+        sortByName(slots, buffer, middle, end);
+
+        int left = start;
+        int right = middle;
+
+        for (int i = start; i < end; i++) {
+            if ((right == end) || ((left < middle) && (compareBytes(arena, nameOffsets[slots[left]], nameLengths[slots[left]],
+                    arena, nameOffsets[slots[right]], nameLengths[slots[right]]) <= 0))) {
+                buffer[i] = slots[left++];
+            }
+            else {
+                buffer[i] = slots[right++];
+            }
+        }
+
+        System.arraycopy(buffer, start, slots, start, end - start);
+    }
+
+    // Goes through mapped files first, then through the columns
+    private abstract class SlotIterator<T> implements Iterator<T> {
+
+        private final int recordCount = (base == null)? 0 : base.size();
+        private int position = -1;
+        private int nextPosition = advance(0);
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return nextPosition < recordCount + slotCount;
+        }
+
+        @Override
+        public T next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (nextPosition >= recordCount + slotCount) throw new NoSuchElementException();
+
+            position = nextPosition;
+            nextPosition = advance(position + 1);
+            return get(slotAt(position));
+        }
+
+        @Override
+        public void remove() {
+            if (position < 0) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+
+            if (position < recordCount) {
+                removeRecord(position);
+            }
+            else {
+                removeSlot(position - recordCount);
+            }
+
+            expectedModCount = modCount;
+            position = -1;
+        }
+
+        protected abstract T get(int slot);
+
+        private int slotAt(int position) {
+            return (position < recordCount)? ~position : position - recordCount;
+        }
+
+        private int advance(int from) {
+            while ((from < recordCount) && baseRemoved.get(from)) {
+                from++;
+            }
+
+            while ((from >= recordCount) && (from < recordCount + slotCount) && (folderOf[from - recordCount] == REMOVED)) {
+                from++;
+            }
+
+            return from;
+        }
+    }
+}
@@ -65,6 +65,16 @@ public class Diff {
         return directoryChanges.get(type);
     }
     
+    public boolean isEmpty() {
+        for (DiffType type : DiffType.values()) {
+            if (!fileChanges.get(type).isEmpty() || !directoryChanges.get(type).isEmpty()) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
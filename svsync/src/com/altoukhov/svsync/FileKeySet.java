@@ -0,0 +1,95 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Set of files of a snapshot, known only by a 64-bit hash of their name, size and timestamp in seconds.
+ *
+ * Keys are read straight from the snapshot's columns and kept in an open addressing table of longs,
+ * so no file objects are created. Two different files may share a key, so a file found in the set
+ * only might be in the snapshot, while a file not found is surely not in it.
+ *
+ * @author Alex Altoukhov
+ */
+public class FileKeySet {
+
+    private static final long EMPTY = 0;
+
+    private final long[] table;
+    private final int mask;
+
+    public FileKeySet(Snapshot snapshot) {
+
+        long[] keys = snapshot.getFileColumns().fileKeys();
+
+        // Kept at most 3/4 full, so probes stay short
+        int capacity = Integer.highestOneBit(Math.max(keys.length + keys.length / 3, 1)) * 2;
+        table = new long[capacity];
+        mask = capacity - 1;
+
+        for (long key : keys) {
+            add(key);
+        }
+    }
+
+    public boolean mightContain(FileSnapshot file) {
+        long key = keyOf(file.getFileName().getBytes(StandardCharsets.UTF_8), file.getFileSize(), file.getModifiedTimestamp().getMillis() / 1000);
+
+        for (int i = indexOf(key); table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == key) return true;
+        }
+
+        return false;
+    }
+
+    // File names are hashed with FNV-1a, then mixed with the size and the timestamp
+    static long keyOf(byte[] name, long size, long modifiedSeconds) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : name) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+
+        hash = mix(hash ^ size);
+        hash = mix(hash ^ modifiedSeconds);
+
+        return (hash == EMPTY)? 1 : hash;
+    }
+
+    private void add(long key) {
+        int i = indexOf(key);
+
+        while (table[i] != EMPTY) {
+            if (table[i] == key) return;
+            i = (i + 1) & mask;
+        }
+
+        table[i] = key;
+    }
+
+    private int indexOf(long key) {
+        return (int)(key ^ (key >>> 32)) & mask;
+    }
+
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -29,6 +29,9 @@ import com.altoukhov.svsync.fileviews.SmbFileSpace;
  */
 public class FileSpaceFactory {
     
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+    
     public static IReadableFileSpace create(SourceInfo source) {
                 
         IReadableFileSpace fileSpace = null;
@@ -95,6 +98,9 @@ public class FileSpaceFactory {
     private static IReadableFileSpace initLocalForRead(SourceInfo source) {
         
         LocalFileSpace localFileSpace = new LocalFileSpace(source.getPath(), source.getExcludes());
+        localFileSpace.setScanThreads(source.getIntParam("scan-threads", 1));
+        localFileSpace.setIncrementalScan(source.getBooleanParam("incremental-scan", false));
+        localFileSpace.setFullScanDays(source.getIntParam("full-scan-days", 0));
         
         if (localFileSpace.init()) {
             return localFileSpace;
@@ -106,6 +112,9 @@ public class FileSpaceFactory {
     private static IWriteableFileSpace initLocalForWrite(TargetInfo target, String sourceName) {
         
         LocalFileSpace localFileSpace = new LocalFileSpace(target.getPath(), sourceName);
+        localFileSpace.setScanThreads(target.getIntParam("scan-threads", 1));
+        localFileSpace.setIncrementalScan(target.getBooleanParam("incremental-scan", false));
+        localFileSpace.setFullScanDays(target.getIntParam("full-scan-days", 0));
         
         if (localFileSpace.init()) {
             return localFileSpace;
@@ -119,6 +128,9 @@ public class FileSpaceFactory {
         String id = source.getParams().get("id");
         String secret = source.getParams().get("secret");
         S3FileSpace s3FileSpace = new S3FileSpace(source.getPath(), source.getExcludes(), id, secret);
+        s3FileSpace.setScanThreads(source.getIntParam("scan-threads", S3FileSpace.DEFAULT_SCAN_THREADS));
+        s3FileSpace.setScanMetadata(source.getBooleanParam("scan-metadata", true));
+        s3FileSpace.setListThreads(source.getIntParam("list-threads", 1));
         
         if (s3FileSpace.init()) {
             return s3FileSpace;
@@ -132,6 +144,12 @@ public class FileSpaceFactory {
         String id = target.getParams().get("id");
         String secret = target.getParams().get("secret");
         S3FileSpace s3FileSpace = new S3FileSpace(target.getPath(), sourceName, id, secret);
+        s3FileSpace.setMultipartThreshold(target.getLongParam("multipart-threshold-mb", S3FileSpace.DEFAULT_MULTIPART_THRESHOLD / MB) * MB);
+        s3FileSpace.setPartSize(target.getLongParam("part-size-mb", S3FileSpace.DEFAULT_PART_SIZE / MB) * MB);
+        s3FileSpace.setUploadThreads(target.getIntParam("upload-threads", S3FileSpace.DEFAULT_UPLOAD_THREADS));
+        s3FileSpace.setScanThreads(target.getIntParam("scan-threads", S3FileSpace.DEFAULT_SCAN_THREADS));
+        s3FileSpace.setScanMetadata(target.getBooleanParam("scan-metadata", true));
+        s3FileSpace.setListThreads(target.getIntParam("list-threads", 1));
         
         if (s3FileSpace.init()) {
             return s3FileSpace;
@@ -144,6 +162,7 @@ public class FileSpaceFactory {
 
         String secret = source.getParams().get("secret");
         AzureFileSpace azureFileSpace = new AzureFileSpace(source.getPath(), source.getExcludes(), secret);
+        azureFileSpace.setListThreads(source.getIntParam("list-threads", 1));
         
         if (azureFileSpace.init()) {
             return azureFileSpace;
@@ -156,6 +175,9 @@ public class FileSpaceFactory {
 
         String secret = target.getParams().get("secret");
         AzureFileSpace azureFileSpace = new AzureFileSpace(target.getPath(), sourceName, secret);
+        azureFileSpace.setBlockSize(target.getLongParam("block-size-kb", AzureFileSpace.DEFAULT_BLOCK_SIZE / KB) * KB);
+        azureFileSpace.setUploadThreads(target.getIntParam("upload-threads", AzureFileSpace.DEFAULT_UPLOAD_THREADS));
+        azureFileSpace.setListThreads(target.getIntParam("list-threads", 1));
         
         if (azureFileSpace.init()) {
             return azureFileSpace;
@@ -170,6 +192,7 @@ public class FileSpaceFactory {
         String password = source.getParams().get("password");
         String domain = source.getParams().get("domain");
         SmbFileSpace smbFileSpace = new SmbFileSpace(source.getPath(), source.getExcludes(), domain, user, password);
+        smbFileSpace.setScanThreads(source.getIntParam("scan-threads", 1));
         
         if (smbFileSpace.init()) {
             return smbFileSpace;
@@ -184,6 +207,7 @@ public class FileSpaceFactory {
         String password = target.getParams().get("password");
         String domain = target.getParams().get("domain");
         SmbFileSpace smbFileSpace = new SmbFileSpace(target.getPath(), sourceName, domain, user, password);
+        smbFileSpace.setScanThreads(target.getIntParam("scan-threads", 1));
         
         if (smbFileSpace.init()) {
             return smbFileSpace;
@@ -41,4 +41,36 @@ public class Info {
     public Map<String, String> getParams() {
         return params;
     }
+    
+    public int getIntParam(String name, int defaultValue) {
+        return (int)getLongParam(name, defaultValue);
+    }
+    
+    public boolean getBooleanParam(String name, boolean defaultValue) {
+        
+        if (params.containsKey(name)) {
+            String value = params.get(name);
+            
+            if (value.equalsIgnoreCase("true")) return true;
+            if (value.equalsIgnoreCase("false")) return false;
+            
+            System.out.println("Invalid value for " + name + ": " + value);
+        }
+        
+        return defaultValue;
+    }
+    
+    public long getLongParam(String name, long defaultValue) {
+        
+        if (params.containsKey(name)) {
+            try {
+                return Long.parseLong(params.get(name));
+            }
+            catch (NumberFormatException ex) {
+                System.out.println("Invalid value for " + name + ": " + params.get(name));
+            }
+        }
+        
+        return defaultValue;
+    }
 }
\ No newline at end of file
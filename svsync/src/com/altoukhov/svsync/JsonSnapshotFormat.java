@@ -0,0 +1,192 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.joda.time.DateTime;
+
+/**
+ * JSON layout of snapshot files, as written by earlier versions with Gson.
+ * Entries are read and written one at a time, so no document is ever held in memory.
+ *
+ * @author Alex Altoukhov
+ */
+class JsonSnapshotFormat {
+
+    public static void write(Snapshot snapshot, Writer stream) throws IOException {
+
+        JsonWriter out = new JsonWriter(stream);
+        out.setIndent("  ");
+
+        out.beginObject();
+        out.name("timestamp").value(snapshot.getTimestamp().toString());
+
+        out.name("files").beginObject();
+        for (Map.Entry<String, FileSnapshot> entry : snapshot.getFiles().entrySet()) {
+            FileSnapshot file = entry.getValue();
+
+            out.name(entry.getKey()).beginObject();
+            out.name("fileName").value(file.getFileName());
+            out.name("modifiedTimestamp").value(file.getModifiedTimestamp().toString());
+            out.name("fileSize").value(file.getFileSize());
+            out.name("relativePath").value(file.getRelativePath());
+            out.endObject();
+        }
+        out.endObject();
+
+        out.name("directories").beginArray();
+        for (String dir : snapshot.getDirectories()) {
+            out.value(dir);
+        }
+        out.endArray();
+
+        if (snapshot.getDirectoryTimestamps() != null) {
+            out.name("directoryTimestamps").beginObject();
+            for (Map.Entry<String, Long> entry : snapshot.getDirectoryTimestamps().entrySet()) {
+                out.name(entry.getKey()).value(entry.getValue());
+            }
+            out.endObject();
+        }
+
+        if (snapshot.getFullScanTimestamp() != null) {
+            out.name("fullScanTimestamp").value(snapshot.getFullScanTimestamp().toString());
+        }
+
+        if (snapshot.getScanSettings() != null) {
+            out.name("scanSettings").value(snapshot.getScanSettings());
+        }
+
+        out.endObject();
+        out.flush();
+    }
+
+    public static Snapshot read(Reader stream) throws IOException {
+
+        JsonReader in = new JsonReader(stream);
+
+        DateTime timestamp = null;
+        PathDictionary paths = new PathDictionary();
+        Map<String, FileSnapshot> files = new CompactFileMap(paths);
+        Set<String> dirs = new PathSet(paths);
+        Map<String, Long> dirTimestamps = null;
+        DateTime fullScanTimestamp = null;
+        String scanSettings = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            }
+            else if (name.equals("timestamp")) {
+                timestamp = new DateTime(in.nextString());
+            }
+            else if (name.equals("files")) {
+                in.beginObject();
+                while (in.hasNext()) {
+                    String path = in.nextName();
+                    files.put(path, readFile(in, path));
+                }
+                in.endObject();
+            }
+            else if (name.equals("directories")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    dirs.add(in.nextString());
+                }
+                in.endArray();
+            }
+            else if (name.equals("directoryTimestamps")) {
+                dirTimestamps = new HashMap<>();
+                in.beginObject();
+                while (in.hasNext()) {
+                    dirTimestamps.put(in.nextName(), in.nextLong());
+                }
+                in.endObject();
+            }
+            else if (name.equals("fullScanTimestamp")) {
+                fullScanTimestamp = new DateTime(in.nextString());
+            }
+            else if (name.equals("scanSettings")) {
+                scanSettings = in.nextString();
+            }
+            else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+
+        if (timestamp == null) {
+            throw new IOException("Snapshot timestamp is missing");
+        }
+
+        Snapshot snapshot = new Snapshot(files, dirs, timestamp);
+        snapshot.setDirectoryTimestamps(dirTimestamps);
+        snapshot.setFullScanTimestamp(fullScanTimestamp);
+        snapshot.setScanSettings(scanSettings);
+
+        return snapshot;
+    }
+
+    private static FileSnapshot readFile(JsonReader in, String path) throws IOException {
+
+        String fileName = null;
+        DateTime modified = null;
+        long size = 0;
+        String relativePath = path;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            }
+            else if (name.equals("fileName")) {
+                fileName = in.nextString();
+            }
+            else if (name.equals("modifiedTimestamp")) {
+                modified = new DateTime(in.nextString());
+            }
+            else if (name.equals("fileSize")) {
+                size = in.nextLong();
+            }
+            else if (name.equals("relativePath")) {
+                relativePath = in.nextString();
+            }
+            else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+
+        if ((fileName == null) || (modified == null)) {
+            throw new IOException("Snapshot entry is incomplete: " + path);
+        }
+
+        return new FileSnapshot(fileName, size, modified, relativePath);
+    }
+}
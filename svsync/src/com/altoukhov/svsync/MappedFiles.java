@@ -0,0 +1,154 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * File records of a mapped snapshot file, read in place.
+ *
+ * Records have a fixed size and are sorted by folder and then by name, so a file is found by binary
+ * search. Folders are numbered in the order of PathDictionary.compare(), and the numbers are the
+ * folders' nodes in the snapshot's dictionary. Names are in a separate section, as UTF-8 bytes.
+ *
+ * @author Alex Altoukhov
+ */
+class MappedFiles {
+
+    // Folder, name offset, name length, size, timestamp in seconds
+    public static final int RECORD_SIZE = 4 + 4 + 4 + 8 + 8;
+
+    private final ByteBuffer records;
+    private final ByteBuffer names;
+    private final int count;
+
+    // File names, which are not the last part of their paths, by record
+    private final Map<Integer, String> otherNames;
+
+    public MappedFiles(ByteBuffer records, ByteBuffer names, int count, Map<Integer, String> otherNames) {
+        this.records = records;
+        this.names = names;
+        this.count = count;
+        this.otherNames = otherNames;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean hasOtherNames() {
+        return !otherNames.isEmpty();
+    }
+
+    public int getFolder(int record) {
+        return records.getInt(record * RECORD_SIZE);
+    }
+
+    public long getSize(int record) {
+        return records.getLong(record * RECORD_SIZE + 12);
+    }
+
+    public long getModifiedSeconds(int record) {
+        return records.getLong(record * RECORD_SIZE + 20);
+    }
+
+    public int getNameLength(int record) {
+        return records.getInt(record * RECORD_SIZE + 8);
+    }
+
+    public byte getNameByte(int record, int index) {
+        return names.get(records.getInt(record * RECORD_SIZE + 4) + index);
+    }
+
+    public byte[] getNameBytes(int record) {
+        int offset = records.getInt(record * RECORD_SIZE + 4);
+        byte[] bytes = new byte[getNameLength(record)];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = names.get(offset + i);
+        }
+
+        return bytes;
+    }
+
+    public String getName(int record) {
+        return new String(getNameBytes(record), StandardCharsets.UTF_8);
+    }
+
+    public String getOtherName(int record) {
+        return otherNames.isEmpty()? null : otherNames.get(record);
+    }
+
+    // Returns the first record of the folder, or the record of the next folder when it has no files
+    public int findFirst(int folder) {
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (getFolder(middle) < folder) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    // Returns the record of the file, or -1 when there is none
+    public int find(int folder, byte[] name) {
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            int order = Integer.compare(getFolder(middle), folder);
+            if (order == 0) order = compareName(middle, name);
+
+            if (order < 0) {
+                low = middle + 1;
+            }
+            else if (order > 0) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    private int compareName(int record, byte[] name) {
+        int offset = records.getInt(record * RECORD_SIZE + 4);
+        int length = getNameLength(record);
+        int common = Math.min(length, name.length);
+
+        for (int i = 0; i < common; i++) {
+            int order = (names.get(offset + i) & 0xFF) - (name[i] & 0xFF);
+            if (order != 0) return order;
+        }
+
+        return length - name.length;
+    }
+}
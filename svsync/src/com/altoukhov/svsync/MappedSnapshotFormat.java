@@ -0,0 +1,434 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.joda.time.DateTime;
+
+/**
+ * Layout of snapshot files, which are memory-mapped and read in place.
+ *
+ * The header holds the snapshot's settings and its folder tree, and is read when the file is opened.
+ * It's followed by fixed-size file records, sorted the way snapshots are diffed, and by the names
+ * of the files. Records and names are left on disk until they are touched, so they are not covered
+ * by the header's CRC32; their sizes are checked against the file length instead.
+ *
+ * A mapped file can't be replaced or deleted on Windows while it's mapped, which it is for as long
+ * as its snapshot is in use. So every save goes to a new numbered file next to the snapshot file,
+ * and the snapshot file itself only holds the name of the current one. Older numbered files are
+ * deleted on later saves, once they are no longer mapped.
+ *
+ * @author Alex Altoukhov
+ */
+class MappedSnapshotFormat {
+
+    private static final byte[] MAGIC = {'S', 'V', 'S', 'M'};
+    private static final byte[] POINTER_MAGIC = {'S', 'V', 'S', 'P'};
+    private static final String DATA_FILE_EXTENSION = ".map";
+    private static final int VERSION = 1;
+
+    // Magic, version and header length
+    private static final int PREFIX_SIZE = 4 + 4 + 8;
+    private static final int IO_BUFFER_SIZE = 256 * 1024;
+
+    public static boolean isMapped(byte[] header, int length) {
+        return startsWith(header, length, MAGIC);
+    }
+
+    public static boolean isPointer(byte[] header, int length) {
+        return startsWith(header, length, POINTER_MAGIC);
+    }
+
+    // Returns a file next to the snapshot file, with a number higher than any earlier one
+    public static File nextDataFile(String path) {
+        File snapshotFile = new File(path).getAbsoluteFile();
+        long generation = 0;
+
+        for (File file : listDataFiles(snapshotFile)) {
+            generation = Math.max(generation, generationOf(snapshotFile, file));
+        }
+
+        return new File(snapshotFile.getParentFile(), snapshotFile.getName() + "." + (generation + 1) + DATA_FILE_EXTENSION);
+    }
+
+    // Deletes numbered files of the snapshot file except the current one. Files, which are still mapped, are left for a later save
+    public static void deleteDataFiles(String path, String currentName) {
+        for (File file : listDataFiles(new File(path).getAbsoluteFile())) {
+            if (!file.getName().equals(currentName)) {
+                file.delete();
+            }
+        }
+    }
+
+    public static void writePointer(String dataFileName, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(POINTER_MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, dataFileName);
+        out.flush();
+    }
+
+    // Reads the snapshot, which the snapshot file at the path points to
+    public static Snapshot readPointer(String path, InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        in.readFully(new byte[POINTER_MAGIC.length]);
+
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        int length = in.readInt();
+        if ((length <= 0) || (length > 4096)) {
+            throw new IOException("Corrupted snapshot pointer");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        String name = new String(bytes, StandardCharsets.UTF_8);
+
+        File snapshotFile = new File(path).getAbsoluteFile();
+        File dataFile = new File(snapshotFile.getParentFile(), name);
+
+        if (generationOf(snapshotFile, dataFile) <= 0) {
+            throw new IOException("Corrupted snapshot pointer");
+        }
+
+        return read(dataFile.getPath());
+    }
+
+    public static void write(Snapshot snapshot, OutputStream stream) throws IOException {
+
+        CompactFileMap files = snapshot.getFileColumns();
+        PathDictionary paths = files.getPaths();
+        int[] slots = files.sortedSlots();
+        int[] dirs = snapshot.getDirectoryNodes().sortedNodes();
+
+        // Only folders, which have files or are folders of the snapshot, are written with their parents
+        boolean[] isUsed = new boolean[paths.size()];
+        boolean[] isDirectory = new boolean[paths.size()];
+        isUsed[PathDictionary.ROOT] = true;
+
+        for (int slot : slots) {
+            markUsed(paths, files.getFolder(slot), isUsed);
+        }
+
+        for (int node : dirs) {
+            markUsed(paths, node, isUsed);
+            isDirectory[node] = true;
+        }
+
+        int[] ranks = paths.ranks();
+        long[] keys = new long[paths.size()];
+        int folderCount = 0;
+
+        for (int node = 0; node < paths.size(); node++) {
+            if (isUsed[node] && (node != PathDictionary.ROOT)) {
+                keys[folderCount++] = ((long)ranks[node] << 32) | node;
+            }
+        }
+
+        Arrays.sort(keys, 0, folderCount);
+
+        // Folders are numbered in order, and a parent always comes before its children
+        int[] folderIndexes = new int[paths.size()];
+        for (int i = 0; i < folderCount; i++) {
+            folderIndexes[(int)keys[i]] = i + 1;
+        }
+
+        long namesLength = 0;
+        Map<Integer, String> otherNames = new HashMap<>();
+
+        for (int i = 0; i < slots.length; i++) {
+            namesLength += files.getNameBytes(slots[i]).length;
+
+            String name = files.getOtherName(slots[i]);
+            if (name != null) otherNames.put(i, name);
+        }
+
+        if ((namesLength > Integer.MAX_VALUE) || ((long)slots.length * MappedFiles.RECORD_SIZE > Integer.MAX_VALUE)) {
+            throw new IOException("Too many files for a mapped snapshot, use the binary format instead");
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+
+        header.writeLong(snapshot.getTimestamp().getMillis());
+        header.writeLong((snapshot.getFullScanTimestamp() == null)? 0 : snapshot.getFullScanTimestamp().getMillis() + 1);
+        writeOptionalString(header, snapshot.getScanSettings());
+
+        Map<String, Long> dirTimestamps = snapshot.getDirectoryTimestamps();
+        header.writeInt((dirTimestamps == null)? 0 : dirTimestamps.size() + 1);
+
+        if (dirTimestamps != null) {
+            for (Map.Entry<String, Long> entry : dirTimestamps.entrySet()) {
+                writeString(header, entry.getKey());
+                header.writeLong(entry.getValue());
+            }
+        }
+
+        header.writeBoolean(isDirectory[PathDictionary.ROOT]);
+        header.writeInt(folderCount);
+
+        for (int i = 0; i < folderCount; i++) {
+            int node = (int)keys[i];
+
+            header.writeInt(folderIndexes[paths.getParent(node)]);
+            writeString(header, paths.getName(node));
+            header.writeBoolean(isDirectory[node]);
+        }
+
+        header.writeInt(otherNames.size());
+        for (Map.Entry<Integer, String> entry : otherNames.entrySet()) {
+            header.writeInt(entry.getKey());
+            writeString(header, entry.getValue());
+        }
+
+        header.writeInt(slots.length);
+        header.writeLong(namesLength);
+        header.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(headerBytes.toByteArray());
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, IO_BUFFER_SIZE));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(headerBytes.size());
+        headerBytes.writeTo(out);
+        out.writeInt((int)crc.getValue());
+
+        int nameOffset = 0;
+        for (int slot : slots) {
+            int nameLength = files.getNameBytes(slot).length;
+
+            out.writeInt(folderIndexes[files.getFolder(slot)]);
+            out.writeInt(nameOffset);
+            out.writeInt(nameLength);
+            out.writeLong(files.getSize(slot));
+            out.writeLong(files.getModifiedSeconds(slot));
+
+            nameOffset += nameLength;
+        }
+
+        for (int slot : slots) {
+            out.write(files.getNameBytes(slot));
+        }
+
+        out.flush();
+    }
+
+    public static Snapshot read(String path) throws IOException {
+
+        RandomAccessFile file = null;
+
+        try {
+            file = new RandomAccessFile(path, "r");
+            FileChannel channel = file.getChannel();
+
+            ByteBuffer prefix = readFully(channel, 0, PREFIX_SIZE);
+            prefix.position(MAGIC.length);
+
+            int version = prefix.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+
+            long headerLength = prefix.getLong();
+            if ((headerLength < 0) || (headerLength > Integer.MAX_VALUE - 4) || (PREFIX_SIZE + headerLength + 4 > channel.size())) {
+                throw new IOException("Corrupted snapshot header");
+            }
+
+            ByteBuffer header = readFully(channel, PREFIX_SIZE, (int)headerLength + 4);
+
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, (int)headerLength);
+            if (header.getInt((int)headerLength) != (int)crc.getValue()) {
+                throw new IOException("Snapshot checksum doesn't match, the file is corrupted");
+            }
+
+            DateTime timestamp = new DateTime(header.getLong());
+            long fullScanTimestamp = header.getLong();
+            String scanSettings = readOptionalString(header);
+
+            Map<String, Long> dirTimestamps = null;
+            int timedDirCount = header.getInt() - 1;
+
+            if (timedDirCount >= 0) {
+                dirTimestamps = new HashMap<>();
+                for (int i = 0; i < timedDirCount; i++) {
+                    dirTimestamps.put(readString(header), header.getLong());
+                }
+            }
+
+            // Folders get the nodes of their numbers, since parents come first
+            PathDictionary paths = new PathDictionary();
+            PathSet dirs = new PathSet(paths);
+
+            if (header.get() != 0) dirs.addNode(PathDictionary.ROOT);
+
+            int folderCount = header.getInt();
+            for (int i = 1; i <= folderCount; i++) {
+                int parent = header.getInt();
+                String name = readString(header);
+
+                if ((parent < 0) || (parent >= i) || (paths.add(parent, name) != i)) {
+                    throw new IOException("Corrupted snapshot folders");
+                }
+
+                if (header.get() != 0) dirs.addNode(i);
+            }
+
+            Map<Integer, String> otherNames = new HashMap<>();
+            int otherNameCount = header.getInt();
+
+            for (int i = 0; i < otherNameCount; i++) {
+                otherNames.put(header.getInt(), readString(header));
+            }
+
+            int fileCount = header.getInt();
+            long namesLength = header.getLong();
+
+            long recordsStart = PREFIX_SIZE + headerLength + 4;
+            long recordsLength = (long)fileCount * MappedFiles.RECORD_SIZE;
+
+            if ((fileCount < 0) || (namesLength < 0) || (recordsStart + recordsLength + namesLength != channel.size())) {
+                throw new IOException("Snapshot file is truncated");
+            }
+
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, recordsStart, recordsLength);
+            ByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY, recordsStart + recordsLength, namesLength);
+
+            MappedFiles base = new MappedFiles(records, names, fileCount, otherNames);
+
+            Snapshot snapshot = new Snapshot(new CompactFileMap(paths, base), dirs, timestamp);
+            snapshot.setFullScanTimestamp((fullScanTimestamp == 0)? null : new DateTime(fullScanTimestamp - 1));
+            snapshot.setScanSettings(scanSettings);
+            snapshot.setDirectoryTimestamps(dirTimestamps);
+
+            return snapshot;
+        }
+        finally {
+            // Mappings stay valid after the file is closed
+            if (file != null) file.close();
+        }
+    }
+
+    private static File[] listDataFiles(final File snapshotFile) {
+        File[] files = snapshotFile.getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return generationOf(snapshotFile, file) > 0;
+            }
+        });
+
+        return (files == null)? new File[0] : files;
+    }
+
+    // Returns the number of a numbered file of the snapshot file, or 0 when the file is not one
+    private static long generationOf(File snapshotFile, File file) {
+        String prefix = snapshotFile.getName() + ".";
+        String name = file.getName();
+
+        if (!name.startsWith(prefix) || !name.endsWith(DATA_FILE_EXTENSION) || !snapshotFile.getParentFile().equals(file.getParentFile())) {
+            return 0;
+        }
+
+        String generation = name.substring(prefix.length(), name.length() - DATA_FILE_EXTENSION.length());
+        if (generation.isEmpty() || (generation.length() > 18)) return 0;
+
+        for (int i = 0; i < generation.length(); i++) {
+            char c = generation.charAt(i);
+            if ((c < '0') || (c > '9')) return 0;
+        }
+
+        return Long.parseLong(generation);
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] magic) {
+        if (length < magic.length) return false;
+
+        for (int i = 0; i < magic.length; i++) {
+            if (header[i] != magic[i]) return false;
+        }
+
+        return true;
+    }
+
+    private static void markUsed(PathDictionary paths, int node, boolean[] isUsed) {
+        while (!isUsed[node]) {
+            isUsed[node] = true;
+            node = paths.getParent(node);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Snapshot file is truncated");
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) writeString(out, value);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if ((length < 0) || (length > in.remaining())) {
+            throw new IOException("Corrupted snapshot string");
+        }
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readOptionalString(ByteBuffer in) throws IOException {
+        return (in.get() != 0)? readString(in) : null;
+    }
+}
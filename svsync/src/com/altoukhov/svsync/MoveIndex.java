@@ -0,0 +1,136 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pairs deleted files with added files of the same name, size and timestamp, which are taken as moved.
+ *
+ * Deleted files are indexed at once, up to the index size. Above it, positions of deleted and added
+ * files are partitioned by hash, and one partition is indexed at a time, so that the index never
+ * holds more than about the index size of files. The files themselves are the diff's, and are not copied.
+ *
+ * @author Alex Altoukhov
+ */
+class MoveIndex {
+
+    private final int indexSize;
+
+    public MoveIndex(int indexSize) {
+        this.indexSize = Math.max(1, indexSize);
+    }
+
+    // Returns added files, which are moved deleted ones, with their previous paths set. Positions of paired files are set in the bit sets
+    public List<FileSnapshot> match(List<FileSnapshot> deleted, List<FileSnapshot> added, BitSet movedFrom, BitSet movedTo) {
+
+        List<FileSnapshot> moved = new ArrayList<>();
+
+        if (deleted.size() <= indexSize) {
+            match(deleted, range(deleted.size()), added, range(added.size()), movedFrom, movedTo, moved);
+            return moved;
+        }
+
+        int partitionCount = (deleted.size() + indexSize - 1) / indexSize;
+        int[][] deletedPartitions = partition(deleted, partitionCount);
+        int[][] addedPartitions = partition(added, partitionCount);
+
+        for (int i = 0; i < partitionCount; i++) {
+            match(deleted, deletedPartitions[i], added, addedPartitions[i], movedFrom, movedTo, moved);
+
+            // Each partition's positions are dropped once matched
+            deletedPartitions[i] = null;
+            addedPartitions[i] = null;
+        }
+
+        return moved;
+    }
+
+    // Pairs files in the order they come, so the first deleted file of a kind goes to the first added one
+    private static void match(List<FileSnapshot> deleted, int[] deletedPositions, List<FileSnapshot> added, int[] addedPositions,
+            BitSet movedFrom, BitSet movedTo, List<FileSnapshot> moved) {
+
+        if ((deletedPositions.length == 0) || (addedPositions.length == 0)) return;
+
+        Map<FileSnapshot, ArrayDeque<Integer>> index = new HashMap<>();
+
+        for (int position : deletedPositions) {
+            ArrayDeque<Integer> positions = index.get(deleted.get(position));
+
+            if (positions == null) {
+                positions = new ArrayDeque<>();
+                index.put(deleted.get(position), positions);
+            }
+
+            positions.add(position);
+        }
+
+        for (int position : addedPositions) {
+            ArrayDeque<Integer> positions = index.get(added.get(position));
+            if ((positions == null) || positions.isEmpty()) continue;
+
+            int from = positions.poll();
+            FileSnapshot file = added.get(position);
+            file.setPreviousPath(deleted.get(from).getRelativePath());
+
+            moved.add(file);
+            movedFrom.set(from);
+            movedTo.set(position);
+        }
+    }
+
+    // Positions of files by partition, in the order the files come
+    private static int[][] partition(List<FileSnapshot> files, int partitionCount) {
+
+        int[] sizes = new int[partitionCount];
+        for (FileSnapshot file : files) {
+            sizes[partitionOf(file, partitionCount)]++;
+        }
+
+        int[][] partitions = new int[partitionCount][];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new int[sizes[i]];
+            sizes[i] = 0;
+        }
+
+        for (int position = 0; position < files.size(); position++) {
+            int partition = partitionOf(files.get(position), partitionCount);
+            partitions[partition][sizes[partition]++] = position;
+        }
+
+        return partitions;
+    }
+
+    private static int partitionOf(FileSnapshot file, int partitionCount) {
+        return (file.hashCode() & Integer.MAX_VALUE) % partitionCount;
+    }
+
+    private static int[] range(int size) {
+        int[] positions = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+
+        return positions;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tree of folder paths, where each folder is stored as its parent's id plus its own name.
+ * A folder path is built only when it's asked for, so shared prefixes are kept once.
+ * Node 0 is the root folder, whose path is empty.
+ *
+ * @author Alex Altoukhov
+ */
+class PathDictionary {
+
+    public static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final List<String> names = new ArrayList<>();
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] depths = new int[INITIAL_CAPACITY];
+
+    // Hash chains of nodes by parent and name, with node ids stored as id + 1, so that 0 ends a chain
+    private int[] buckets = new int[INITIAL_CAPACITY];
+    private int[] next = new int[INITIAL_CAPACITY];
+
+    public PathDictionary() {
+        names.add("");
+        parents[ROOT] = -1;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    // Returns the node of the path, or -1 when it was never added
+    public int find(String path) {
+        return find(path, path.length());
+    }
+
+    // Returns the node of the path's first end chars, without cutting them out
+    public int find(String path, int end) {
+        int node = ROOT;
+
+        for (int start = 0; (start < end) && (node >= 0); ) {
+            int split = path.indexOf('/', start);
+            if ((split < 0) || (split > end)) split = end;
+
+            node = findChild(node, path, start, split);
+            start = split + 1;
+        }
+
+        return node;
+    }
+
+    public int add(String path) {
+        return add(path, path.length());
+    }
+
+    public int add(String path, int end) {
+        int node = ROOT;
+
+        for (int start = 0; start < end; ) {
+            int split = path.indexOf('/', start);
+            if ((split < 0) || (split > end)) split = end;
+
+            int child = findChild(node, path, start, split);
+            node = (child >= 0)? child : addChild(node, path.substring(start, split));
+            start = split + 1;
+        }
+
+        return node;
+    }
+
+    // Returns the child of the parent node with the name, which is added if it's not there yet
+    public int add(int parent, String name) {
+        int child = findChild(parent, name, 0, name.length());
+        return (child >= 0)? child : addChild(parent, name);
+    }
+
+    public String getPath(int node) {
+        if (node == ROOT) return "";
+
+        StringBuilder path = new StringBuilder();
+        appendPath(node, path);
+        return path.toString();
+    }
+
+    public String getName(int node) {
+        return names.get(node);
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    // Orders paths by their names from the root down, so a folder comes right before everything in it.
+    // Both nodes may come from different dictionaries
+    public int compare(int node, PathDictionary other, int otherNode) {
+        if ((this == other) && (node == otherNode)) return 0;
+        if (node == ROOT) return (otherNode == ROOT)? 0 : -1;
+        if (otherNode == ROOT) return 1;
+
+        int depth = depths[node];
+        int otherDepth = other.depths[otherNode];
+
+        if (depth > otherDepth) {
+            int order = compare(parents[node], other, otherNode);
+            return (order == 0)? 1 : order;
+        }
+
+        if (depth < otherDepth) {
+            int order = compare(node, other, other.parents[otherNode]);
+            return (order == 0)? -1 : order;
+        }
+
+        int order = compare(parents[node], other, other.parents[otherNode]);
+        return (order == 0)? names.get(node).compareTo(other.names.get(otherNode)) : order;
+    }
+
+    // Ranks of all nodes in the order of compare()
+    public int[] ranks() {
+
+        int count = names.size();
+
+        // Children are grouped by parent and sorted by name, parents come before their children
+        Integer[] nodes = new Integer[count - 1];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = i + 1;
+        }
+
+        Arrays.sort(nodes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int order = Integer.compare(depths[a], depths[b]);
+                if (order == 0) order = Integer.compare(parents[a], parents[b]);
+
+                return (order == 0)? names.get(a).compareTo(names.get(b)) : order;
+            }
+        });
+
+        int[] subtreeSizes = new int[count];
+        Arrays.fill(subtreeSizes, 1);
+
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            subtreeSizes[parents[nodes[i]]] += subtreeSizes[nodes[i]];
+        }
+
+        // Each child takes the rank after its parent and its earlier siblings with everything in them
+        int[] ranks = new int[count];
+        int[] nextRanks = new int[count];
+        nextRanks[ROOT] = 1;
+
+        for (int node : nodes) {
+            int parent = parents[node];
+
+            ranks[node] = nextRanks[parent];
+            nextRanks[parent] += subtreeSizes[node];
+            nextRanks[node] = ranks[node] + 1;
+        }
+
+        return ranks;
+    }
+
+    private void appendPath(int node, StringBuilder path) {
+        int parent = parents[node];
+
+        if (parent != ROOT) {
+            appendPath(parent, path);
+            path.append('/');
+        }
+
+        path.append(names.get(node));
+    }
+
+    private int findChild(int parent, String path, int start, int end) {
+        int hash = hash(parent, path, start, end);
+
+        for (int node = buckets[hash & (buckets.length - 1)] - 1; node >= 0; node = next[node] - 1) {
+            String name = names.get(node);
+
+            if ((parents[node] == parent) && (name.length() == end - start) && path.regionMatches(start, name, 0, name.length())) {
+                return node;
+            }
+        }
+
+        return -1;
+    }
+
+    private int addChild(int parent, String name) {
+        int node = names.size();
+
+        if (node == parents.length) {
+            parents = Arrays.copyOf(parents, node * 2);
+            depths = Arrays.copyOf(depths, node * 2);
+            next = Arrays.copyOf(next, node * 2);
+
+            buckets = new int[node * 2];
+            for (int i = 1; i < node; i++) {
+                link(i);
+            }
+        }
+
+        names.add(name);
+        parents[node] = parent;
+        depths[node] = depths[parent] + 1;
+        link(node);
+
+        return node;
+    }
+
+    private void link(int node) {
+        String name = names.get(node);
+        int bucket = hash(parents[node], name, 0, name.length()) & (buckets.length - 1);
+
+        next[node] = buckets[bucket];
+        buckets[bucket] = node + 1;
+    }
+
+    private static int hash(int parent, String path, int start, int end) {
+        int hash = parent;
+
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + path.charAt(i);
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of folder paths, kept as marked nodes of a PathDictionary.
+ * Removed folders stay in the dictionary, since files of the snapshot may still refer to them.
+ *
+ * @author Alex Altoukhov
+ */
+class PathSet extends AbstractSet<String> {
+
+    private final PathDictionary paths;
+    private final BitSet members = new BitSet();
+    private int size = 0;
+    private int modCount = 0;
+
+    public PathSet(PathDictionary paths) {
+        this.paths = paths;
+    }
+
+    public PathSet(PathDictionary paths, Collection<String> dirs) {
+        this.paths = paths;
+        addAll(dirs);
+    }
+
+    PathDictionary getPaths() {
+        return paths;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object path) {
+        if (!(path instanceof String)) return false;
+
+        int node = paths.find((String)path);
+        return (node >= 0) && members.get(node);
+    }
+
+    @Override
+    public boolean add(String path) {
+        int node = paths.add(path);
+        if (members.get(node)) return false;
+
+        members.set(node);
+        size++;
+        modCount++;
+        return true;
+    }
+
+    boolean containsNode(int node) {
+        return members.get(node);
+    }
+
+    void addNode(int node) {
+        if (members.get(node)) return;
+
+        members.set(node);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public boolean remove(Object path) {
+        if (!(path instanceof String)) return false;
+
+        int node = paths.find((String)path);
+        if ((node < 0) || !members.get(node)) return false;
+
+        members.clear(node);
+        size--;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        members.clear();
+        size = 0;
+        modCount++;
+    }
+
+    // Nodes of all folders, in the order of PathDictionary.compare()
+    int[] sortedNodes() {
+
+        int[] ranks = paths.ranks();
+        long[] keys = new long[size];
+        int count = 0;
+
+        for (int node = members.nextSetBit(0); node >= 0; node = members.nextSetBit(node + 1)) {
+            keys[count++] = ((long)ranks[node] << 32) | node;
+        }
+
+        Arrays.sort(keys);
+
+        int[] nodes = new int[size];
+        for (int i = 0; i < size; i++) {
+            nodes[i] = (int)keys[i];
+        }
+
+        return nodes;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+
+            private int node = -1;
+            private int nextNode = members.nextSetBit(0);
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return nextNode >= 0;
+            }
+
+            @Override
+            public String next() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (nextNode < 0) throw new NoSuchElementException();
+
+                node = nextNode;
+                nextNode = members.nextSetBit(node + 1);
+                return paths.getPath(node);
+            }
+
+            @Override
+            public void remove() {
+                if (node < 0) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+
+                members.clear(node);
+                size--;
+                modCount++;
+                expectedModCount = modCount;
+                node = -1;
+            }
+        };
+    }
+}
@@ -16,27 +16,32 @@ limitations under the License.
 
 package com.altoukhov.svsync;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import com.altoukhov.svsync.fileviews.IWriteableFileSpace;
@@ -46,24 +51,47 @@ import com.altoukhov.svsync.fileviews.IWriteableFileSpace;
  */
 public class Snapshot implements IWriteableFileSpace {
     
-    private static final GsonBuilder gsonBuilder = new GsonBuilder();
+    public static final int DEFAULT_MOVE_INDEX_SIZE = 1000000;
     
-    static {
-        GsonSerializers serializers = new GsonSerializers();
-        gsonBuilder.registerTypeAdapter(DateTime.class, serializers.new DateTimeSerializer());
-        gsonBuilder.registerTypeAdapter(DateTime.class, serializers.new DateTimeDeserializer());
-    }    
+    public enum FileFormat { BINARY, MAPPED, JSON }
+    
+    private static final int FILE_BUFFER_SIZE = 256 * 1024;
     
     private DateTime timestamp;
-    private Map<String, FileSnapshot> files;
-    private Set<String> directories;
+    private CompactFileMap files;
+    private PathSet directories;
+    
+    // Kept by file spaces, which support incremental scans
+    private Map<String, Long> directoryTimestamps;
+    private DateTime fullScanTimestamp;
+    private String scanSettings;
     
     public Snapshot(Map<String, FileSnapshot> files, Set<String> dirs) {
-        this.files = files;
-        this.directories = dirs;
+        this.files = compact(files);
+        this.directories = compact(this.files.getPaths(), dirs);
         this.timestamp = DateTime.now(DateTimeZone.UTC);
     }
     
+    Snapshot(Map<String, FileSnapshot> files, Set<String> dirs, DateTime timestamp) {
+        this.files = compact(files);
+        this.directories = compact(this.files.getPaths(), dirs);
+        this.timestamp = timestamp;
+    }
+    
+    // Snapshots of large trees are kept for the whole sync, so files are held in columns rather than as objects
+    private static CompactFileMap compact(Map<String, FileSnapshot> files) {
+        return (files instanceof CompactFileMap)? (CompactFileMap)files : new CompactFileMap(files);
+    }
+    
+    // Folders share the path dictionary of the files, so every folder path is kept once
+    private static PathSet compact(PathDictionary paths, Set<String> dirs) {
+        if ((dirs instanceof PathSet) && (((PathSet)dirs).getPaths() == paths)) {
+            return (PathSet)dirs;
+        }
+        
+        return new PathSet(paths, dirs);
+    }
+    
     public DateTime getTimestamp() {
         return timestamp;
     }
@@ -72,9 +100,41 @@ public class Snapshot implements IWriteableFileSpace {
         return files;
     }
 
+    CompactFileMap getFileColumns() {
+        return files;
+    }
+
+    PathSet getDirectoryNodes() {
+        return directories;
+    }
+
     public Set<String> getDirectories() {
         return directories;
     }
+
+    public Map<String, Long> getDirectoryTimestamps() {
+        return directoryTimestamps;
+    }
+
+    public void setDirectoryTimestamps(Map<String, Long> directoryTimestamps) {
+        this.directoryTimestamps = directoryTimestamps;
+    }
+
+    public DateTime getFullScanTimestamp() {
+        return fullScanTimestamp;
+    }
+
+    public void setFullScanTimestamp(DateTime fullScanTimestamp) {
+        this.fullScanTimestamp = fullScanTimestamp;
+    }
+
+    public String getScanSettings() {
+        return scanSettings;
+    }
+
+    public void setScanSettings(String scanSettings) {
+        this.scanSettings = scanSettings;
+    }
     
     public long size() {
         long size = 0;
@@ -85,7 +145,71 @@ public class Snapshot implements IWriteableFileSpace {
         return size;
     }
     
+    // Files and folders, which are right in one of the folders or anywhere under one of the trees.
+    // Only folders of the dictionary are walked, and only the files selected are turned into objects
+    public synchronized Snapshot select(Collection<String> folders, Collection<String> trees) {
+        
+        PathDictionary paths = directories.getPaths();
+        int nodeCount = paths.size();
+        
+        boolean[] isListed = new boolean[nodeCount];
+        boolean[] isInTree = new boolean[nodeCount];
+        
+        for (String folder : folders) {
+            int node = paths.find(folder);
+            if (node >= 0) isListed[node] = true;
+        }
+        
+        for (String tree : trees) {
+            int node = paths.find(tree);
+            if (node >= 0) isInTree[node] = true;
+        }
+        
+        // Parents are added to the dictionary before their children, so one pass marks whole trees
+        for (int node = 1; node < nodeCount; node++) {
+            if (isInTree[paths.getParent(node)]) isInTree[node] = true;
+        }
+        
+        List<FileSnapshot> selectedFiles = new ArrayList<>();
+        Set<String> selectedDirs = new HashSet<>();
+        
+        for (int node = 0; node < nodeCount; node++) {
+            boolean isSelected = isListed[node] || isInTree[node];
+            
+            if (isSelected) {
+                files.collectFiles(node, selectedFiles);
+            }
+            
+            if ((isSelected || ((node != PathDictionary.ROOT) && isListed[paths.getParent(node)])) && directories.containsNode(node)) {
+                selectedDirs.add(paths.getPath(node));
+            }
+        }
+        
+        Map<String, FileSnapshot> selected = new LinkedHashMap<>();
+        for (FileSnapshot file : selectedFiles) {
+            selected.put(file.getRelativePath(), file);
+        }
+        
+        return new Snapshot(selected, selectedDirs);
+    }
+    
+    // Files right in the folder, without going through other files
+    public synchronized List<FileSnapshot> getFilesIn(String folder) {
+        List<FileSnapshot> folderFiles = new ArrayList<>();
+        
+        int node = directories.getPaths().find(folder);
+        if (node >= 0) files.collectFiles(node, folderFiles);
+        
+        return folderFiles;
+    }
+    
     public static Diff diff(Snapshot source, Snapshot target, boolean detectMovedFiles) {
+        return diff(source, target, detectMovedFiles, DEFAULT_MOVE_INDEX_SIZE);
+    }
+    
+    // Files of both snapshots are walked side by side in the same order, so paths are compared without building lookups.
+    // Only files, which differ, are turned into objects. Above moveIndexSize deleted files, moved files are matched a part at a time
+    public static Diff diff(Snapshot source, Snapshot target, boolean detectMovedFiles, int moveIndexSize) {
                 
         Diff diff = new Diff();
         
@@ -97,99 +221,80 @@ public class Snapshot implements IWriteableFileSpace {
         Collection<String> dirAdded = diff.getDirectoryChanges(Diff.DiffType.ADDED);
         Collection<String> dirDeleted = diff.getDirectoryChanges(Diff.DiffType.DELETED);
         
-        for (String filePath : target.files.keySet()) {
-            if (source.files.containsKey(filePath)) {
-                
-                FileSnapshot fromFile = source.files.get(filePath);
-                FileSnapshot toFile = target.files.get(filePath);
+        CompactFileMap fromMap = source.files;
+        CompactFileMap toMap = target.files;
+        
+        int[] fromFiles = fromMap.sortedSlots();
+        int[] toFiles = toMap.sortedSlots();
+        
+        List<FileSnapshot> addedFiles = new ArrayList<>();
+        List<FileSnapshot> deletedFiles = new ArrayList<>();
+        
+        int from = 0;
+        int to = 0;
+        
+        while ((from < fromFiles.length) || (to < toFiles.length)) {
+            
+            int order = (from == fromFiles.length)? 1 : (to == toFiles.length)? -1 : fromMap.compare(fromFiles[from], toMap, toFiles[to]);
+            
+            if (order == 0) {
+                int fromFile = fromFiles[from++];
+                int toFile = toFiles[to++];
                 
-                if (!toFile.equals(fromFile)) {
-                    changed.add(fromFile);
+                if (!toMap.isSameFile(toFile, fromMap, fromFile)) {
+                    changed.add(fromMap.getFile(fromFile));
                 }
             }
+            else if (order < 0) {
+                addedFiles.add(fromMap.getFile(fromFiles[from++]));
+            }
             else {
-                deleted.add(target.files.get(filePath));
+                deletedFiles.add(toMap.getFile(toFiles[to++]));
             }
         }
         
-        for (String filePath : source.files.keySet()) {
-            if (!target.files.containsKey(filePath)) {
-                added.add(source.files.get(filePath));
-            }
+        // Sorted copies are dropped before the moved files index is built
+        fromFiles = null;
+        toFiles = null;
+        
+        BitSet movedFrom = new BitSet();
+        BitSet movedTo = new BitSet();
+        
+        if (detectMovedFiles && !addedFiles.isEmpty() && !deletedFiles.isEmpty()) {
+            moved.addAll(new MoveIndex(moveIndexSize).match(deletedFiles, addedFiles, movedFrom, movedTo));
         }
-
-        if (detectMovedFiles) {
-            
-            // Find moved items
-            Set<FileSnapshot> movedFiles = new HashSet<>(added);
-            movedFiles.retainAll(deleted);
-                        
-            if (!movedFiles.isEmpty()) {
-
-                Map<FileSnapshot, List<FileSnapshot>> movedFromMap = new HashMap<>();
-                Map<FileSnapshot, List<FileSnapshot>> movedToMap = new HashMap<>();
-                
-                for (FileSnapshot file : deleted) {
-                    if (movedFiles.contains(file)) {
-                        
-                        if (!movedFromMap.containsKey(file)) {
-                            movedFromMap.put(file, new ArrayList<FileSnapshot>());
-                        }
-                        
-                        movedFromMap.get(file).add(file);
-                    }
-                }
-
-                for (FileSnapshot file : added) {
-                    if (movedFiles.contains(file)) {
-                        
-                        if (!movedToMap.containsKey(file)) {
-                            movedToMap.put(file, new ArrayList<FileSnapshot>());
-                        }
-                        
-                        movedToMap.get(file).add(file);
-                    }
-                }
-                
-                // Remove from added/deleted
-                added.removeAll(movedFiles);
-                deleted.removeAll(movedFiles);                
-                
-                for (FileSnapshot file : movedFiles) {
-                    
-                    List<FileSnapshot> fromList = movedFromMap.get(file);
-                    List<FileSnapshot> toList = movedToMap.get(file);
-                    
-                    int i;
-                    for (i=0; i<Math.min(fromList.size(), toList.size()); i++) {
-                        FileSnapshot movedFile = toList.get(i);
-                        movedFile.setPreviousPath(fromList.get(i).getRelativePath());
-                        moved.add(movedFile);
-                    }
-                    
-                    while (i<fromList.size()) {
-                        deleted.add(fromList.get(i));
-                        i++;
-                    }
-                    
-                    while (i<toList.size()) {
-                        added.add(toList.get(i));
-                        i++;
-                    }                    
-                }
-            }
+        
+        for (int i = 0; i < addedFiles.size(); i++) {
+            if (!movedTo.get(i)) added.add(addedFiles.get(i));
+        }
+        
+        for (int i = 0; i < deletedFiles.size(); i++) {
+            if (!movedFrom.get(i)) deleted.add(deletedFiles.get(i));
         }
             
-        // Find directory changes
-        for (String dir : source.directories) {
-            if (!target.directories.contains(dir)) {
-                dirAdded.add(dir);
+        // Find directory changes, folders are walked the same way as files
+        PathDictionary fromPaths = source.directories.getPaths();
+        PathDictionary toPaths = target.directories.getPaths();
+        
+        int[] fromDirs = source.directories.sortedNodes();
+        int[] toDirs = target.directories.sortedNodes();
+        
+        from = 0;
+        to = 0;
+        
+        while ((from < fromDirs.length) || (to < toDirs.length)) {
+            
+            int order = (from == fromDirs.length)? 1 : (to == toDirs.length)? -1 : fromPaths.compare(fromDirs[from], toPaths, toDirs[to]);
+            
+            if (order == 0) {
+                from++;
+                to++;
             }
-        }
-
-        for (String dir : target.directories) {
-            if (!source.directories.contains(dir)) {
-                dirDeleted.add(dir);
+            else if (order < 0) {
+                dirAdded.add(fromPaths.getPath(fromDirs[from++]));
+            }
+            else {
+                dirDeleted.add(toPaths.getPath(toDirs[to++]));
             }
         }
         
@@ -197,76 +302,169 @@ public class Snapshot implements IWriteableFileSpace {
         return diff;
     }
     
-    private static Snapshot fromJson(String json) {
-        Gson g = gsonBuilder.create();
-        return g.fromJson(json, Snapshot.class);
-    }
-    
+    // Snapshots are read entry by entry, in binary or JSON format, whichever the file has. Mapped snapshots are read in place
     public static Snapshot fromFile(String path) {
+        InputStream in = null;
+        
         try {            
             if (!(new File(path)).exists()) return null;
-            String content = readFile(path, StandardCharsets.UTF_8);
-            return fromJson(content);
+            
+            in = new BufferedInputStream(new FileInputStream(path), FILE_BUFFER_SIZE);
+            in.mark(BinarySnapshotFormat.headerSize());
+            
+            byte[] header = new byte[BinarySnapshotFormat.headerSize()];
+            int length = IOUtils.read(in, header);
+            
+            if (BinarySnapshotFormat.isBinary(header, length)) {
+                return BinarySnapshotFormat.read(in);
+            }
+            
+            if (MappedSnapshotFormat.isPointer(header, length)) {
+                in.reset();
+                return MappedSnapshotFormat.readPointer(path, in);
+            }
+            
+            if (MappedSnapshotFormat.isMapped(header, length)) {
+                return MappedSnapshotFormat.read(path);
+            }
+            
+            // Snapshots saved by earlier versions
+            in.reset();
+            return JsonSnapshotFormat.read(new InputStreamReader(in, StandardCharsets.UTF_8));
         }
         catch (Exception ex) {
             System.out.println(ex.getMessage());
             return null;
         }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
     }
     
-    private String toJson() {
-        Gson g = gsonBuilder.setPrettyPrinting().create();
-        return g.toJson(this);
+    public boolean toFile(String path) {
+        return toFile(path, FileFormat.BINARY);
     }
     
-    public boolean toFile(String path) {
+    // The file is replaced only once the new one is complete, so a failed save keeps the old snapshot.
+    // Mapped snapshots are saved to a new numbered file, which the file at the path then points to,
+    // so a snapshot mapped from an earlier save keeps reading its own file
+    public boolean toFile(String path, FileFormat format) {
+        File dataFile = null;
+        String dataFileName = null;
+        
+        if (format == FileFormat.MAPPED) {
+            dataFile = MappedSnapshotFormat.nextDataFile(path);
+            if (!writeFile(dataFile, format, null)) return false;
+            
+            dataFileName = dataFile.getName();
+        }
+        
+        File tempFile = new File(path + ".tmp");
+        boolean isReplaced = writeFile(tempFile, format, dataFileName);
+        
+        if (isReplaced) {
+            try {
+                try {
+                    Files.move(tempFile.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tempFile.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            catch (IOException ex) {
+                System.out.println("Failed to replace " + path + ": " + ex.getMessage());
+                tempFile.delete();
+                isReplaced = false;
+            }
+        }
+        
+        if (!isReplaced) {
+            if (dataFile != null) dataFile.delete();
+            return false;
+        }
+        
+        MappedSnapshotFormat.deleteDataFiles(path, dataFileName);
+        return true;
+    }
+    
+    // Writes the snapshot in the format, or only the name of its mapped file when there is one. The file is deleted if writing fails
+    private boolean writeFile(File file, FileFormat format, String dataFileName) {
+        OutputStream stream = null;
         Writer out = null;
+        boolean isWritten = false;
+        
         try {
-            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), "UTF-8"));
-            out.write(toJson());
+            stream = new FileOutputStream(file);
+            
+            if (dataFileName != null) {
+                MappedSnapshotFormat.writePointer(dataFileName, stream);
+            }
+            else if (format == FileFormat.BINARY) {
+                BinarySnapshotFormat.write(this, stream);
+            }
+            else if (format == FileFormat.MAPPED) {
+                MappedSnapshotFormat.write(this, stream);
+            }
+            else {
+                out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), FILE_BUFFER_SIZE);
+                JsonSnapshotFormat.write(this, out);
+            }
+            
+            isWritten = true;
         }
         catch (IOException ex) {
             System.out.println(ex.getMessage());
-            return false;
         }
         finally {
             try {
                 if (out != null) {
                     out.close();
                 }
+                else if (stream != null) {
+                    stream.close();
+                }
             }
             catch (IOException ex) {
                 System.out.println(ex.getMessage());
+                isWritten = false;
             }
         }
         
-        return true;
-    }
-    
-    private static String readFile(String path, Charset encoding) throws IOException 
-    {
-        byte[] encoded = Files.readAllBytes(Paths.get(path));
-        return encoding.decode(ByteBuffer.wrap(encoded)).toString();
+        if (!isWritten) {
+            file.delete();
+        }
+        
+        return isWritten;
     }
 
     @Override
-    public boolean createDirectory(String path) {
+    public synchronized boolean createDirectory(String path) {
         return directories.add(path);
     }
 
     @Override
-    public boolean deleteDirectory(String path) {
+    public synchronized boolean deleteDirectory(String path) {
         return directories.remove(path);
     }
 
     @Override
-    public boolean deleteFile(String path) {
+    public synchronized boolean deleteFile(String path) {
         files.remove(path);
         return true;
     }
 
     @Override
-    public boolean writeFile(InputStream fileStream, FileSnapshot file) {
+    public synchronized Collection<String> deleteFiles(Collection<String> paths) {
+        return Utils.deleteEach(this, paths, false);
+    }
+
+    @Override
+    public synchronized Collection<String> deleteDirectories(Collection<String> paths) {
+        return Utils.deleteEach(this, paths, true);
+    }
+
+    @Override
+    public synchronized boolean writeFile(InputStream fileStream, FileSnapshot file) {
         files.put(file.getRelativePath(), file);
         return true;
     }
@@ -277,7 +475,7 @@ public class Snapshot implements IWriteableFileSpace {
     }
 
     @Override
-    public boolean moveFile(String oldPath, String newPath) {
+    public synchronized boolean moveFile(String oldPath, String newPath) {
         
         if (files.containsKey(oldPath)) {
             FileSnapshot file = files.get(oldPath);
@@ -289,4 +487,9 @@ public class Snapshot implements IWriteableFileSpace {
         
         return false;
     }
+
+    @Override
+    public synchronized Collection<String> moveFiles(Map<String, String> moves) {
+        return Utils.moveEach(this, moves);
+    }
 }
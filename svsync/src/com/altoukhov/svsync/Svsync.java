@@ -16,11 +16,14 @@ limitations under the License.
 
 package com.altoukhov.svsync;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import com.altoukhov.svsync.engines.Analyzer;
 import com.altoukhov.svsync.engines.Restorer;
 import com.altoukhov.svsync.engines.Syncer;
+import com.altoukhov.svsync.engines.Watcher;
 
 /**
  * @author Alex Altoukhov
@@ -56,13 +59,16 @@ public class Svsync {
         else if (params.containsKey("restore")) {
             restore(profile, params.get("restore"));
         }
+        else if (params.containsKey("watch")) {
+            watch(profile);
+        }
         else {
             sync(profile);
         }
     }
 
     private static void printUsage() {
-        System.out.println("USAGE: svsync -profile <profile> [-analyze] [-restore <local_path>]");
+        System.out.println("USAGE: svsync -profile <profile> [-analyze] [-restore <local_path>] [-watch]");
     }
     
     private static Map<String, String> parseParameters(String[] args) {
@@ -124,6 +130,32 @@ public class Svsync {
         }
     }
     
+    private static void watch(final Profile profile) {
+        
+        List<Thread> watchers = new ArrayList<>();
+        
+        for (final SourceInfo source : profile.getSources()) {
+            Thread watcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Watcher.watch(source, profile.getTarget());
+                }
+            }, "svsync-watch-" + source.getName());
+            
+            watcher.start();
+            watchers.add(watcher);
+        }
+        
+        for (Thread watcher : watchers) {
+            try {
+                watcher.join();
+            }
+            catch (InterruptedException ex) {
+                System.out.println("Watch was interrupted: " + ex.getMessage());
+            }
+        }
+    }
+    
     private static void restore(Profile profile, String path) {
         
         Map<String, String> params = profile.getTarget().getParams();        
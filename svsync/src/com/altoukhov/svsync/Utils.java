@@ -16,7 +16,15 @@ limitations under the License.
 
 package com.altoukhov.svsync;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.altoukhov.svsync.fileviews.IWriteableFileSpace;
 
 /**
  * @author Alex Altoukhov
@@ -35,4 +43,45 @@ public class Utils {
         long rateInt = Math.round(rate) * 1000l;
         return readableFileSize(rateInt);
     }    
-}
\ No newline at end of file
+    
+    // Returns the folder of a relative path, which is empty for entries of the root
+    public static String parentOf(String path) {
+        int split = path.lastIndexOf('/');
+        return (split < 0)? "" : path.substring(0, split);
+    }
+    
+    public static ExecutorService createExecutor(String name, int threadCount) {
+        return Executors.newFixedThreadPool(Math.max(1, threadCount), new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("svsync-" + name + "-%d")
+                .build());
+    }
+    
+    // Deletes paths one at a time, for file spaces without a batch call. Returns paths, which failed
+    public static Collection<String> deleteEach(IWriteableFileSpace space, Collection<String> paths, boolean isDirectory) {
+        List<String> failed = new ArrayList<>();
+        
+        for (String path : paths) {
+            boolean isDeleted = isDirectory? space.deleteDirectory(path) : space.deleteFile(path);
+            
+            if (!isDeleted) {
+                failed.add(path);
+            }
+        }
+        
+        return failed;
+    }
+    
+    // Moves files one at a time, for file spaces without a batch call. Returns old paths of files, which failed
+    public static Collection<String> moveEach(IWriteableFileSpace space, Map<String, String> moves) {
+        List<String> failed = new ArrayList<>();
+        
+        for (Map.Entry<String, String> move : moves.entrySet()) {
+            if (!space.moveFile(move.getKey(), move.getValue())) {
+                failed.add(move.getKey());
+            }
+        }
+        
+        return failed;
+    }
+}
@@ -64,6 +64,14 @@ public class Analyzer {
     public IWriteableFileSpace getCache() {
         return targetSnapshot;
     }
+
+    public Snapshot getSourceSnapshot() {
+        return sourceSnapshot;
+    }
+    
+    public Snapshot getTargetSnapshot() {
+        return targetSnapshot;
+    }
     
     public boolean init() {
         
@@ -83,18 +91,26 @@ public class Analyzer {
     }
     
     public Diff analyze() {
+        return scan()? diff() : null;
+    }
+    
+    // Scans both sides, the target is scanned on a separate thread unless it was loaded from cache already
+    public boolean scan() {
 
         System.out.println("Analyzing " + sourceInfo.getName());
         
-        targetScanThread.start();
+        boolean isTargetScanned = (targetSnapshot == null);
+        if (isTargetScanned) {
+            targetScanThread.start();
+        }
         
         sourceSnapshot = loadFromCacheOrScan(sourceInfo, source);
         if (sourceSnapshot == null) {
             System.out.println("Failed to scan source: " + sourceInfo.getPath());
-            return null;
+            return false;
         }
         try {
-            targetScanThread.join();
+            if (isTargetScanned) targetScanThread.join();
         }
         catch (InterruptedException ex) {
             System.out.println("Target scan thread was interrupted: " + ex.getMessage());
@@ -102,17 +118,28 @@ public class Analyzer {
         
         if (targetSnapshot == null) {
             System.out.println("Failed to scan target: " + targetInfo.getPath());
-            return null;
+            return false;
         }
 
-        return Snapshot.diff(sourceSnapshot, targetSnapshot, target.isMoveFileSupported());
-    }        
+        return true;
+    }
+    
+    public Diff diff() {
+        return Snapshot.diff(sourceSnapshot, targetSnapshot, target.isMoveFileSupported(),
+                targetInfo.getIntParam("move-index-size", Snapshot.DEFAULT_MOVE_INDEX_SIZE));
+    }
+    
+    // Takes the target snapshot from cache, if the cache has not expired yet, so that the target is not scanned
+    public boolean loadCachedTarget() {
+        targetSnapshot = loadFromCache(targetInfo.getParams(), snapshotFileName(targetInfo, sourceInfo.getName()));
+        return targetSnapshot != null;
+    }
     
     public void updateCache() {
         boolean isCacheEnabled = targetInfo.getParams().containsKey("cache-days");
         
         if (isCacheEnabled) {
-            targetSnapshot.toFile(snapshotFileName(targetInfo, sourceInfo.getName()));
+            targetSnapshot.toFile(snapshotFileName(targetInfo, sourceInfo.getName()), fileFormat(targetInfo.getParams()));
         }
     }
     
@@ -126,6 +153,19 @@ public class Analyzer {
         return loadFromCacheOrScan(targetInfo.getParams(), snapshotFileName(targetInfo, sourceName), (IScannableFileSpace)target, new ArrayList<String>());
     }
     
+    private static Snapshot loadFromCache(Map<String, String> infoParams, String snapshotFilePath) {
+        if (!infoParams.containsKey("cache-days")) return null;
+        
+        Snapshot snap = Snapshot.fromFile(snapshotFilePath);
+        
+        if (snap != null) {
+            DateTime cacheExpiration = snap.getTimestamp().plusDays(Integer.parseInt(infoParams.get("cache-days")));
+            if (cacheExpiration.isBefore(DateTime.now(DateTimeZone.UTC))) return null;
+        }
+        
+        return snap;
+    }
+    
     private static Snapshot loadFromCacheOrScan(Map<String, String> infoParams, String snapshotFilePath, IScannableFileSpace fileSpace, Collection<String> filters) {
         boolean isCacheEnabled = infoParams.containsKey("cache-days");
         boolean shouldScan = true;
@@ -140,15 +180,28 @@ public class Analyzer {
         }
         
         if (shouldScan) {
-            snap = fileSpace.scan(filters);
+            // Expired cache is still good for an incremental scan, where the file space supports it
+            snap = fileSpace.scan(filters, isCacheEnabled? snap : null);
             if ((snap != null) && isCacheEnabled) {
-                snap.toFile(snapshotFilePath);
+                snap.toFile(snapshotFilePath, fileFormat(infoParams));
             }
         }
         
         return snap;        
     }
     
+    // Snapshots are saved in binary format, unless the mapped format or JSON is asked for. All formats are read either way
+    private static Snapshot.FileFormat fileFormat(Map<String, String> infoParams) {
+        String format = infoParams.get("snapshot-format");
+        
+        if ((format == null) || format.equalsIgnoreCase("binary")) return Snapshot.FileFormat.BINARY;
+        if (format.equalsIgnoreCase("mapped")) return Snapshot.FileFormat.MAPPED;
+        if (format.equalsIgnoreCase("json")) return Snapshot.FileFormat.JSON;
+        
+        System.out.println("Invalid value for snapshot-format: " + format);
+        return Snapshot.FileFormat.BINARY;
+    }
+    
     private static String snapshotFileName(TargetInfo targetInfo, String sourceName) {
         return snapshotFileName(targetInfo.getPath(), sourceName);
     }
@@ -0,0 +1,266 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync.engines;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import com.altoukhov.svsync.BufferPool;
+
+/**
+ * Reads the source stream on a separate thread into a bounded ring of pooled buffers,
+ * so that source reads overlap with target writes draining this stream.
+ * Buffers are returned to the pool when the stream is closed.
+ *
+ * Reading ahead starts with the first read, so the writer takes its own buffers first, and it
+ * never waits for the budget. When the budget has no room even for one buffer, the source is
+ * read directly instead.
+ *
+ * @author Alex Altoukhov
+ */
+public class ReadAheadStream extends InputStream {
+
+    private static final Chunk EOF = new Chunk(null, 0, null);
+
+    private final InputStream source;
+    private final int bufferSize;
+    private final int bufferCount;
+    private final ExecutorService readers;
+
+    private final BufferPool pool = BufferPool.getShared();
+    private final List<byte[]> allocatedBuffers = new ArrayList<>();
+    private final CountDownLatch readerDone = new CountDownLatch(1);
+
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final BlockingQueue<Chunk> filledChunks;
+
+    private Thread readerThread;
+    private Chunk current;
+    private int position;
+    private volatile boolean closed;
+    private boolean started;
+    private boolean direct;
+
+    public ReadAheadStream(InputStream source, int bufferSize, int bufferCount, ExecutorService readers) {
+        this.source = source;
+        this.bufferSize = Math.max(1, bufferSize);
+        this.bufferCount = Math.max(1, bufferCount);
+
+        freeBuffers = new ArrayBlockingQueue<>(this.bufferCount);
+        filledChunks = new ArrayBlockingQueue<>(this.bufferCount + 1);
+
+        this.readers = readers;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (isDirect()) return source.read();
+        if (!nextChunk()) return -1;
+
+        int value = current.buffer[position] & 0xff;
+        position++;
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (isDirect()) return source.read(b, off, len);
+        if (!nextChunk()) return -1;
+
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current.buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (direct) return source.available();
+        return (current == null || current == EOF)? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean isReading;
+
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            isReading = started && !direct;
+
+            if (readerThread != null) {
+                readerThread.interrupt();
+            }
+        }
+
+        source.close();
+        if (!isReading) return;
+
+        // Buffers go back to the pool only once the reader can no longer touch them
+        try {
+            readerDone.await();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        synchronized (allocatedBuffers) {
+            for (byte[] buffer : allocatedBuffers) {
+                pool.release(buffer);
+            }
+            allocatedBuffers.clear();
+        }
+    }
+
+    // Starts reading ahead on the first call, and tells whether the source is read directly instead
+    private synchronized boolean isDirect() throws IOException {
+
+        if (closed) throw new IOException("Stream is closed");
+        if (started) return direct;
+
+        started = true;
+
+        byte[] buffer = pool.tryAcquire(bufferSize);
+        if (buffer == null) {
+            direct = true;
+            return true;
+        }
+
+        synchronized (allocatedBuffers) {
+            allocatedBuffers.add(buffer);
+        }
+        freeBuffers.offer(buffer);
+
+        readers.execute(new ReadJob());
+        return false;
+    }
+
+    private boolean nextChunk() throws IOException {
+
+        if (closed) throw new IOException("Stream is closed");
+        if (current == EOF) return false;
+        if ((current != null) && (position < current.length)) return true;
+
+        if (current != null) {
+            freeBuffers.offer(current.buffer);
+        }
+
+        try {
+            current = filledChunks.take();
+            position = 0;
+        }
+        catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for source data");
+        }
+
+        if (current.error != null) {
+            IOException error = current.error;
+            current = EOF;
+            throw error;
+        }
+
+        return current != EOF;
+    }
+
+    private static class Chunk {
+
+        private final byte[] buffer;
+        private final int length;
+        private final IOException error;
+
+        public Chunk(byte[] buffer, int length, IOException error) {
+            this.buffer = buffer;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    private class ReadJob implements Runnable {
+
+        @Override
+        public void run() {
+            synchronized (ReadAheadStream.this) {
+                if (closed) {
+                    readerDone.countDown();
+                    return;
+                }
+                readerThread = Thread.currentThread();
+            }
+
+            try {
+                while (true) {
+
+                    // The first buffer comes with the job, more are taken only while the shared budget allows
+                    byte[] buffer = freeBuffers.poll();
+                    if ((buffer == null) && (allocatedBuffers.size() < bufferCount)) {
+                        buffer = pool.tryAcquire(bufferSize);
+                        if (buffer != null) {
+                            synchronized (allocatedBuffers) {
+                                allocatedBuffers.add(buffer);
+                            }
+                        }
+                    }
+                    if (buffer == null) {
+                        buffer = freeBuffers.take();
+                    }
+
+                    // Fill the whole buffer, fewer and larger chunks keep the hand-off cheap
+                    int length = 0;
+                    int read = 0;
+                    while ((length < buffer.length) && ((read = source.read(buffer, length, buffer.length - length)) != -1)) {
+                        length += read;
+                    }
+
+                    if (length > 0) {
+                        filledChunks.put(new Chunk(buffer, length, null));
+                    }
+
+                    if (read == -1) {
+                        filledChunks.put(EOF);
+                        return;
+                    }
+                }
+            }
+            catch (IOException ex) {
+                filledChunks.offer(new Chunk(null, 0, ex));
+            }
+            catch (RuntimeException | Error ex) {
+                // The writer waits for a chunk, so any failure of the source has to reach it
+                filledChunks.offer(new Chunk(null, 0, new IOException("Failed to read source: " + ex, ex)));
+            }
+            catch (InterruptedException ex) {
+                // Stream was closed by the writer
+            }
+            finally {
+                synchronized (ReadAheadStream.this) {
+                    readerThread = null;
+                    // Don't leak a late interrupt into the next job of this pool thread
+                    Thread.interrupted();
+                }
+                readerDone.countDown();
+            }
+        }
+    }
+}
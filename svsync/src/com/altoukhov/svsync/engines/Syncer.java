@@ -16,25 +16,45 @@ limitations under the License.
 
 package com.altoukhov.svsync.engines;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import com.altoukhov.svsync.BufferPool;
 import com.altoukhov.svsync.Diff;
+import com.altoukhov.svsync.FileKeySet;
 import com.altoukhov.svsync.FileSnapshot;
+import com.altoukhov.svsync.Snapshot;
 import com.altoukhov.svsync.SourceInfo;
 import com.altoukhov.svsync.TargetInfo;
 import com.altoukhov.svsync.Utils;
 import com.altoukhov.svsync.fileviews.IReadableFileSpace;
+import com.altoukhov.svsync.fileviews.IScanListener;
+import com.altoukhov.svsync.fileviews.IScannableFileSpace;
 import com.altoukhov.svsync.fileviews.IWriteableFileSpace;
+import com.altoukhov.svsync.fileviews.LocalFileSpace;
 
 /**
  * @author Alex Altoukhov
  */
 public class Syncer {
     
+    private static final int KB = 1024;
+    private static final int MB = 1024 * KB;
+    private static final int DELETE_BATCH_SIZE = 1000;
+    private static final int MOVE_BATCH_SIZE = 1000;
+    
     public static void sync(SourceInfo sourceInfo, TargetInfo targetInfo) {
 
         Analyzer analyzer = new Analyzer(sourceInfo, targetInfo);
@@ -43,65 +63,189 @@ public class Syncer {
             return;
         }
 
+        // With the target known from cache, new and changed files don't have to wait for the end of the source scan
+        if (targetInfo.getBooleanParam("stream-transfers", false) && analyzer.loadCachedTarget()) {
+            stream(sourceInfo, analyzer, targetInfo);
+            return;
+        }
+        
         Diff diff = analyzer.analyze();
         System.out.println("Diff for " + sourceInfo.getName());
         System.out.println(diff.toString());
-                
-        IReadableFileSpace source = analyzer.getSource();
-        IWriteableFileSpace target = analyzer.getTarget();
-        IWriteableFileSpace cache = analyzer.getCache();
         
         System.out.println("Syncing " + sourceInfo.getName());
+        apply(diff, analyzer, targetInfo);
+        analyzer.updateCache();
+    }
+    
+    private static void stream(SourceInfo sourceInfo, Analyzer analyzer, TargetInfo targetInfo) {
+        
+        System.out.println("Streaming " + sourceInfo.getName());
+        
+        TransferEngine engine = createEngine(targetInfo);
+        IScannableFileSpace source = (IScannableFileSpace)analyzer.getSource();
+        
+        source.setScanListener(new StreamingListener(engine, analyzer));
+        boolean isScanned;
+        
+        try {
+            isScanned = analyzer.scan();
+        }
+        finally {
+            source.setScanListener(null);
+            engine.awaitPhase();
+        }
+        
+        if (isScanned) {
+            // Streamed files are in the cache by now, what is left needs the whole source: deletes, moves and failed writes
+            Diff diff = analyzer.diff();
+            System.out.println("Diff for " + sourceInfo.getName());
+            System.out.println(diff.toString());
+            
+            System.out.println("Syncing " + sourceInfo.getName());
+            apply(diff, analyzer, engine);
+        }
         
-        // Create added directories
-        List<String> addedDirectories = new ArrayList<>(diff.getDirectoryChanges(Diff.DiffType.ADDED));
-        Collections.sort(addedDirectories);
+        engine.shutdown();
+        analyzer.updateCache();
+    }
+    
+    // Applies the diff to the target, and to the target's cached snapshot
+    static void apply(Diff diff, Analyzer analyzer, TargetInfo targetInfo) {
+        TransferEngine engine = createEngine(targetInfo);
+        apply(diff, analyzer, engine);
+        engine.shutdown();
+    }
+    
+    private static TransferEngine createEngine(TargetInfo targetInfo) {
+        
+        BufferPool.getShared().setBudget(targetInfo.getLongParam("buffer-memory-mb", BufferPool.DEFAULT_BUDGET / MB) * MB);
+        
+        TransferEngine engine = new TransferEngine(targetInfo.getIntParam("threads", TransferEngine.DEFAULT_THREAD_COUNT));
+        engine.enableReadAhead(
+                targetInfo.getIntParam("read-ahead-buffer-kb", TransferEngine.DEFAULT_READ_AHEAD_BUFFER_SIZE / KB) * KB,
+                targetInfo.getLongParam("read-ahead-mb", TransferEngine.DEFAULT_READ_AHEAD_SIZE / MB) * MB);
+        
+        return engine;
+    }
+    
+    private static void apply(Diff diff, Analyzer analyzer, final TransferEngine engine) {
+                
+        final IReadableFileSpace source = analyzer.getSource();
+        final IWriteableFileSpace target = analyzer.getTarget();
+        final IWriteableFileSpace cache = analyzer.getCache();
         
-        for (String dir : addedDirectories) {
-            System.out.println("Creating directory " + dir);
-            target.createDirectory(dir);
-            cache.createDirectory(dir);
+        // Create added directories, parents before children
+        for (List<String> level : groupByDepth(diff.getDirectoryChanges(Diff.DiffType.ADDED), false)) {
+            for (final String dir : level) {
+                engine.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        System.out.println("Creating directory " + dir);
+                        target.createDirectory(dir);
+                        cache.createDirectory(dir);
+                    }
+                });
+            }
+            engine.awaitPhase();
         }
 
         // Add + update files
-        for (FileSnapshot file : Iterables.concat(diff.getFileChanges(Diff.DiffType.ADDED), diff.getFileChanges(Diff.DiffType.CHANGED))) {
-            writeFile(source, target, file);
-            cache.writeFile(null, file);
+        for (final FileSnapshot file : Iterables.concat(diff.getFileChanges(Diff.DiffType.ADDED), diff.getFileChanges(Diff.DiffType.CHANGED))) {
+            engine.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (writeFile(engine, source, target, file)) {
+                        cache.writeFile(null, file);
+                    }
+                }
+            });
         }
+        engine.awaitPhase();
 
-        // Delete files
+        // Delete files, in batches
+        List<String> deletedFiles = new ArrayList<>();
         for (FileSnapshot file : diff.getFileChanges(Diff.DiffType.DELETED)) {
-            System.out.println("Deleting file " + file.getRelativePath());
-            target.deleteFile(file.getRelativePath());
-            cache.deleteFile(file.getRelativePath());
+            deletedFiles.add(file.getRelativePath());
         }
         
-        // Move files
-        for (FileSnapshot file : diff.getFileChanges(Diff.DiffType.MOVED)) {
-            System.out.println("Moving file from " + file.getPreviousPath() + " to " + file.getRelativePath());
-            target.moveFile(file.getPreviousPath(), file.getRelativePath());
-            cache.moveFile(file.getPreviousPath(), file.getRelativePath());
+        for (final List<String> batch : Lists.partition(deletedFiles, DELETE_BATCH_SIZE)) {
+            engine.submit(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println("Deleting " + batch.size() + " files");
+                    deleteBatch(batch, target.deleteFiles(batch), cache, false);
+                }
+            });
         }
-
-        // Delete removed directories (should be empty by this point)
-        List<String> deletedDirectories = new ArrayList<>(diff.getDirectoryChanges(Diff.DiffType.DELETED));
-        Collections.sort(deletedDirectories, Collections.reverseOrder());        
+        engine.awaitPhase();
         
-        for (String dir : deletedDirectories) {
-            System.out.println("Deleting directory " + dir);
-            target.deleteDirectory(dir);
-            cache.deleteDirectory(dir);
+        // Move files, in batches
+        for (final List<FileSnapshot> batch : Iterables.partition(diff.getFileChanges(Diff.DiffType.MOVED), MOVE_BATCH_SIZE)) {
+            engine.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, String> moves = new LinkedHashMap<>();
+                    for (FileSnapshot file : batch) {
+                        System.out.println("Moving file from " + file.getPreviousPath() + " to " + file.getRelativePath());
+                        moves.put(file.getPreviousPath(), file.getRelativePath());
+                    }
+                    
+                    Collection<String> failed = target.moveFiles(moves);
+                    
+                    for (String path : failed) {
+                        System.out.println("Failed to move file from " + path + " to " + moves.get(path));
+                        moves.remove(path);
+                    }
+                    
+                    cache.moveFiles(moves);
+                }
+            });
+        }
+        engine.awaitPhase();
+
+        // Delete removed directories (should be empty by this point), children before parents
+        for (List<String> level : groupByDepth(diff.getDirectoryChanges(Diff.DiffType.DELETED), true)) {
+            for (final List<String> batch : Lists.partition(level, DELETE_BATCH_SIZE)) {
+                engine.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        System.out.println("Deleting " + batch.size() + " directories");
+                        deleteBatch(batch, target.deleteDirectories(batch), cache, true);
+                    }
+                });
+            }
+            engine.awaitPhase();
         }
-        
-        analyzer.updateCache();
     }
     
-    private static void writeFile(IReadableFileSpace source, IWriteableFileSpace target, FileSnapshot file) {
+    private static boolean writeFile(TransferEngine engine, IReadableFileSpace source, IWriteableFileSpace target, FileSnapshot file) {
         
         System.out.println("Writing file " + file.getRelativePath() + ", " + Utils.readableFileSize(file.getFileSize()));
         
         Stopwatch stopwatch = Stopwatch.createStarted();
-        boolean success = target.writeFile(source.readFile(file.getRelativePath()), file);
+        boolean success = false;
+        InputStream stream = null;
+        
+        try {
+            // Don't start new transfers while all transfer memory is in use
+            BufferPool.getShared().awaitCapacity();
+            
+            if ((source instanceof LocalFileSpace) && (target instanceof LocalFileSpace)) {
+                success = ((LocalFileSpace)target).copyFile((LocalFileSpace)source, file);
+            }
+            else {
+                stream = engine.readAhead(source.readFile(file.getRelativePath()));
+                success = target.writeFile(stream, file);
+            }
+        }
+        catch (InterruptedException ex) {
+            System.out.println("Write was interrupted: " + ex.getMessage());
+        }
+        finally {
+            // Returns read-ahead buffers to the pool, even if target didn't close the stream
+            IOUtils.closeQuietly(stream);
+        }
         stopwatch.stop();
         
         if (success) {
@@ -110,5 +254,109 @@ public class Syncer {
         else {
             System.out.println("Failed to write file " + file.getRelativePath());
         }
+        
+        return success;
+    }
+    
+    private static void deleteBatch(List<String> batch, Collection<String> failed, IWriteableFileSpace cache, boolean isDirectory) {
+        
+        for (String path : failed) {
+            System.out.println("Failed to delete " + (isDirectory? "directory " : "file ") + path);
+        }
+        
+        // Failed paths stay in cache, they are still at target
+        List<String> deleted = new ArrayList<>(batch);
+        deleted.removeAll(new HashSet<>(failed));
+        
+        if (isDirectory) {
+            cache.deleteDirectories(deleted);
+        }
+        else {
+            cache.deleteFiles(deleted);
+        }
+    }
+    
+    private static List<List<String>> groupByDepth(Collection<String> dirs, boolean deepestFirst) {
+        
+        TreeMap<Integer, List<String>> levels = new TreeMap<>();
+        
+        for (String dir : dirs) {
+            int depth = CharMatcher.is('/').countIn(dir);
+            
+            if (!levels.containsKey(depth)) {
+                levels.put(depth, new ArrayList<String>());
+            }
+            
+            levels.get(depth).add(dir);
+        }
+        
+        List<List<String>> grouped = new ArrayList<>(deepestFirst? levels.descendingMap().values() : levels.values());
+        for (List<String> level : grouped) {
+            Collections.sort(level);
+        }
+        
+        return grouped;
+    }
+    
+    // Writes new and changed files as soon as the scan finds them. Files, which may have been moved
+    // from another path at target, are left for the final diff, so that they are moved rather than copied.
+    // Cached files are known by hash only, so a few new files may be left for the final diff as well
+    private static class StreamingListener implements IScanListener {
+        
+        private final TransferEngine engine;
+        private final IReadableFileSpace source;
+        private final IWriteableFileSpace target;
+        private final Snapshot cache;
+        private final FileKeySet movable;
+        
+        public StreamingListener(TransferEngine engine, Analyzer analyzer) {
+            this.engine = engine;
+            this.source = analyzer.getSource();
+            this.target = analyzer.getTarget();
+            this.cache = analyzer.getTargetSnapshot();
+            this.movable = target.isMoveFileSupported()? new FileKeySet(cache) : null;
+        }
+        
+        @Override
+        public synchronized void directoryFound(String path) {
+            
+            boolean isKnown;
+            synchronized (cache) {
+                isKnown = cache.getDirectories().contains(path);
+            }
+            
+            if (isKnown) return;
+            
+            // Some sources find files before their folders
+            if (!path.isEmpty()) {
+                directoryFound(Utils.parentOf(path));
+            }
+            
+            System.out.println("Creating directory " + path);
+            target.createDirectory(path);
+            cache.createDirectory(path);
+        }
+        
+        @Override
+        public void fileFound(final FileSnapshot file) {
+            
+            FileSnapshot known;
+            synchronized (cache) {
+                known = cache.getFiles().get(file.getRelativePath());
+            }
+            
+            if (file.equals(known) || ((known == null) && (movable != null) && movable.mightContain(file))) return;
+            
+            directoryFound(Utils.parentOf(file.getRelativePath()));
+            
+            engine.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (writeFile(engine, source, target, file)) {
+                        cache.writeFile(null, file);
+                    }
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,114 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync.engines;
+
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import com.altoukhov.svsync.Utils;
+
+/**
+ * Runs sync jobs on a bounded pool of workers, one phase at a time.
+ * Jobs submitted between two calls to awaitPhase() may run in any order,
+ * awaitPhase() returns only when all of them are done.
+ *
+ * @author Alex Altoukhov
+ */
+public class TransferEngine {
+
+    public static final int DEFAULT_THREAD_COUNT = 4;
+
+    public static final int DEFAULT_READ_AHEAD_BUFFER_SIZE = 1024 * 1024;
+    public static final long DEFAULT_READ_AHEAD_SIZE = 8 * 1024 * 1024;
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final int slotCount;
+    private final int threadCount;
+
+    private ExecutorService readers;
+    private int readAheadBufferSize;
+    private int readAheadBufferCount;
+
+    public TransferEngine(int threadCount) {
+
+        this.threadCount = Math.max(1, threadCount);
+
+        // Keep the queue short, so that millions of pending jobs never sit in memory at once
+        slotCount = this.threadCount * 2;
+        slots = new Semaphore(slotCount);
+
+        executor = Utils.createExecutor("transfer", this.threadCount);
+    }
+
+    public void enableReadAhead(int bufferSize, long readAheadSize) {
+        if ((bufferSize <= 0) || (readAheadSize <= 0)) return;
+
+        readAheadBufferSize = bufferSize;
+        readAheadBufferCount = (int)Math.max(1, readAheadSize / bufferSize);
+
+        // Each worker writes one file at a time, so one reader per worker is enough
+        if (readers == null) {
+            readers = Utils.createExecutor("read-ahead", threadCount);
+        }
+    }
+
+    public InputStream readAhead(InputStream stream) {
+        if ((stream == null) || (readers == null)) return stream;
+        return new ReadAheadStream(stream, readAheadBufferSize, readAheadBufferCount, readers);
+    }
+
+    public void submit(final Runnable job) {
+
+        slots.acquireUninterruptibly();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.run();
+                    }
+                    catch (RuntimeException ex) {
+                        System.out.println("Transfer job failed: " + ex.getMessage());
+                    }
+                    finally {
+                        slots.release();
+                    }
+                }
+            });
+        }
+        catch (RuntimeException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    public void awaitPhase() {
+        slots.acquireUninterruptibly(slotCount);
+        slots.release(slotCount);
+    }
+
+    public void shutdown() {
+        awaitPhase();
+        executor.shutdown();
+
+        if (readers != null) {
+            readers.shutdown();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync.engines;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import com.altoukhov.svsync.Diff;
+import com.altoukhov.svsync.Snapshot;
+import com.altoukhov.svsync.SourceInfo;
+import com.altoukhov.svsync.TargetInfo;
+import com.altoukhov.svsync.fileviews.LocalFileSpace;
+
+/**
+ * Keeps the target in sync with a local source, until the process is stopped.
+ *
+ * Folders of the source are watched for changes. Changes are collected into a set of dirty
+ * folders until they settle, then only the dirty folders are listed, compared with the target's
+ * cached snapshot, and the difference is applied the same way Syncer does it. When the watch
+ * service loses events, the whole source is rescanned instead.
+ *
+ * @author Alex Altoukhov
+ */
+public class Watcher {
+
+    public static final long DEFAULT_DELAY = 2000;
+    public static final long DEFAULT_SAVE_INTERVAL = 60000;
+
+    // Constant writes still get synced after this many quiet periods
+    private static final int MAX_DELAYS = 10;
+
+    private final SourceInfo sourceInfo;
+    private final TargetInfo targetInfo;
+    private final long delay;
+    private final long saveInterval;
+
+    private Analyzer analyzer;
+    private LocalFileSpace source;
+    private WatchService watchService;
+
+    private final Map<WatchKey, String> watchedFolders = new HashMap<>();
+    private final Map<String, WatchKey> watchKeys = new HashMap<>();
+
+    // Folders to list again, and new folders to scan with everything under them
+    private final Set<String> dirtyFolders = new HashSet<>();
+    private final Set<String> dirtyTrees = new HashSet<>();
+
+    // The cache is saved whole, so changes are saved together at most once per interval
+    private boolean isCacheChanged = false;
+    private long lastSaveTime;
+
+    private Watcher(SourceInfo sourceInfo, TargetInfo targetInfo) {
+        this.sourceInfo = sourceInfo;
+        this.targetInfo = targetInfo;
+        this.delay = Math.max(1, sourceInfo.getLongParam("watch-delay-ms", DEFAULT_DELAY));
+        this.saveInterval = Math.max(0, sourceInfo.getLongParam("watch-save-interval-ms", DEFAULT_SAVE_INTERVAL));
+    }
+
+    public static void watch(SourceInfo sourceInfo, TargetInfo targetInfo) {
+        new Watcher(sourceInfo, targetInfo).run();
+    }
+
+    private void run() {
+
+        analyzer = new Analyzer(sourceInfo, targetInfo);
+        if (!analyzer.init()) {
+            System.out.println("Analyzer failed to init");
+            return;
+        }
+
+        if (!(analyzer.getSource() instanceof LocalFileSpace)) {
+            System.out.println("Only local sources can be watched: " + sourceInfo.getPath());
+            return;
+        }
+
+        source = (LocalFileSpace)analyzer.getSource();
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException ex) {
+            System.out.println("Failed to start watching " + sourceInfo.getPath() + ": " + ex.getMessage());
+            return;
+        }
+
+        // Folders are watched before the first scan, so changes made while it and the first sync run come as events
+        System.out.println("Watching " + sourceInfo.getPath());
+        DateTime watchStart = DateTime.now(DateTimeZone.UTC);
+        watchFolders(source.listFolders(sourceInfo.getFilters(), Collections.singleton("")));
+
+        try {
+            Diff diff = analyzer.analyze();
+            if (diff == null) return;
+
+            System.out.println("Diff for " + sourceInfo.getName());
+            System.out.println(diff.toString());
+
+            System.out.println("Syncing " + sourceInfo.getName());
+            Syncer.apply(diff, analyzer, targetInfo);
+            analyzer.updateCache();
+            lastSaveTime = System.currentTimeMillis();
+
+            // A source taken from cache was not scanned, so changes made before watching are found by a full rescan
+            if (analyzer.getSourceSnapshot().getTimestamp().isBefore(watchStart)) {
+                dirtyTrees.add("");
+                syncChanges();
+            }
+
+            while (awaitChanges()) {
+                syncChanges();
+            }
+        }
+        finally {
+            saveCache(true);
+
+            try {
+                watchService.close();
+            }
+            catch (IOException ex) {
+                System.out.println("Failed to stop watching " + sourceInfo.getPath() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    // Blocks until some changes were made, and until no more changes come for a while.
+    // Synced changes are saved to the cache meanwhile, once the save interval is over
+    private boolean awaitChanges() {
+        try {
+            WatchKey key;
+
+            if (isCacheChanged) {
+                key = watchService.poll(Math.max(1, lastSaveTime + saveInterval - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+                if (key == null) {
+                    saveCache(false);
+                    key = watchService.take();
+                }
+            }
+            else {
+                key = watchService.take();
+            }
+
+            long deadline = System.currentTimeMillis() + MAX_DELAYS * delay;
+
+            while (key != null) {
+                collectChanges(key);
+                if (System.currentTimeMillis() > deadline) break;
+
+                key = watchService.poll(delay, TimeUnit.MILLISECONDS);
+            }
+
+            return true;
+        }
+        catch (InterruptedException | ClosedWatchServiceException ex) {
+            System.out.println("Stopped watching " + sourceInfo.getPath());
+            return false;
+        }
+    }
+
+    private void collectChanges(WatchKey key) {
+
+        String folder = watchedFolders.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                System.out.println("Too many changes in " + sourceInfo.getPath() + ", rescanning all folders");
+                dirtyTrees.add("");
+                continue;
+            }
+
+            if (folder == null) continue;
+            dirtyFolders.add(folder);
+
+            Path child = ((Path)key.watchable()).resolve((Path)event.context());
+            String name = child.getFileName().toString();
+            String relativePath = folder.isEmpty()? name : folder + "/" + name;
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    dirtyTrees.add(relativePath);
+                }
+            }
+            else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                // Watches follow renamed folders, so they are dropped and set up again under the new name
+                unwatchFolders(relativePath);
+            }
+        }
+
+        if (!key.reset()) {
+            watchedFolders.remove(key);
+            if ((folder != null) && key.equals(watchKeys.get(folder))) watchKeys.remove(folder);
+        }
+    }
+
+    private void syncChanges() {
+
+        Set<String> folders = new HashSet<>(dirtyFolders);
+        Set<String> trees = new HashSet<>(dirtyTrees);
+        dirtyFolders.clear();
+        dirtyTrees.clear();
+
+        if (trees.contains("")) {
+            folders.clear();
+            trees.clear();
+            trees.add("");
+        }
+
+        if (folders.isEmpty() && trees.isEmpty()) return;
+
+        // New folders are watched before they are scanned, so files created in them meanwhile are not missed
+        watchFolders(source.listFolders(sourceInfo.getFilters(), trees));
+
+        Snapshot changed = source.scan(sourceInfo.getFilters(), folders, trees);
+        if (changed == null) {
+            System.out.println("Failed to scan source: " + sourceInfo.getPath());
+            return;
+        }
+
+        watchFolders(changed.getDirectories());
+
+        Snapshot known = selectKnown(analyzer.getTargetSnapshot(), folders, trees, changed);
+        Diff diff = Snapshot.diff(changed, known, analyzer.getTarget().isMoveFileSupported());
+        if (diff.isEmpty()) return;
+
+        System.out.println("Diff for " + sourceInfo.getName());
+        System.out.println(diff.toString());
+
+        System.out.println("Syncing " + sourceInfo.getName());
+        Syncer.apply(diff, analyzer, targetInfo);
+        isCacheChanged = true;
+        saveCache(false);
+    }
+
+    private void saveCache(boolean isStopping) {
+        if (!isCacheChanged) return;
+        if (!isStopping && (System.currentTimeMillis() - lastSaveTime < saveInterval)) return;
+
+        analyzer.updateCache();
+        isCacheChanged = false;
+        lastSaveTime = System.currentTimeMillis();
+    }
+
+    // Takes entries of the cached snapshot, which the partial scan would have found if they were still there.
+    // Entries are looked up by folder, so a batch costs as much as the folders it touched
+    private static Snapshot selectKnown(Snapshot known, Set<String> folders, Set<String> trees, Snapshot changed) {
+
+        // Folders, which are gone from the listed folders, are gone with everything under them
+        Set<String> subtrees = new HashSet<>(trees);
+        for (String dir : known.select(folders, Collections.<String>emptySet()).getDirectories()) {
+            if (!changed.getDirectories().contains(dir)) {
+                subtrees.add(dir);
+            }
+        }
+
+        return known.select(folders, subtrees);
+    }
+
+    private void watchFolders(Collection<String> folders) {
+        for (String folder : folders) {
+            watchFolder(folder);
+        }
+    }
+
+    private void watchFolder(String folder) {
+
+        if (watchKeys.containsKey(folder)) return;
+
+        try {
+            WatchKey key = source.getRootPath().resolve(folder.replace("/", File.separator)).register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            watchedFolders.put(key, folder);
+            watchKeys.put(folder, key);
+        }
+        catch (IOException ex) {
+            System.out.println("Failed to watch " + folder + ": " + ex.getMessage());
+        }
+    }
+
+    private void unwatchFolders(String folder) {
+
+        for (String watched : new ArrayList<>(watchKeys.keySet())) {
+            if (watched.equals(folder) || watched.startsWith(folder + "/")) {
+                WatchKey key = watchKeys.remove(watched);
+                watchedFolders.remove(key);
+                key.cancel();
+            }
+        }
+    }
+}
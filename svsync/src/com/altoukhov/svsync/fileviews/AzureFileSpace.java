@@ -18,21 +18,34 @@ package com.altoukhov.svsync.fileviews;
 
 import java.io.InputStream;
 import java.util.List;
-import java.util.regex.Pattern;
 import com.altoukhov.svsync.FileSnapshot;
 import com.altoukhov.svsync.Snapshot;
+import com.altoukhov.svsync.Utils;
+import com.google.common.io.BaseEncoding;
 import com.microsoft.azure.storage.*;
 import com.microsoft.azure.storage.blob.*;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import org.joda.time.DateTime;
 import static com.altoukhov.svsync.fileviews.FileSpace.isFiltered;
 
@@ -41,6 +54,20 @@ import static com.altoukhov.svsync.fileviews.FileSpace.isFiltered;
  */
 public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IReadableFileSpace, IWriteableFileSpace {
 
+    private static final int MB = 1024 * 1024;
+    private static final int MIN_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK_SIZE = 4 * MB;
+    private static final int MAX_BLOCK_COUNT = 50000;
+    private static final int REQUEST_THREADS = 16;
+    private static final int MAX_PENDING_COPIES = 1000;
+    private static final long COPY_POLL_INTERVAL = 500;
+    
+    // Listing returns metadata and properties of every blob, so no extra request per blob is needed
+    private static final EnumSet<BlobListingDetails> listingDetails = EnumSet.of(BlobListingDetails.METADATA);
+    
+    public static final int DEFAULT_BLOCK_SIZE = 4 * MB;
+    public static final int DEFAULT_UPLOAD_THREADS = 4;
+
     private String connectionString;
     
     private String containerName = "";    
@@ -54,6 +81,12 @@ public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IR
     private CloudBlobClient blobClient;
     private CloudBlobContainer container;
     
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int uploadThreads = DEFAULT_UPLOAD_THREADS;
+    private ExecutorService uploadExecutor;
+    private ExecutorService requestExecutor;
+    private int listThreads = 1;
+    
     private AzureFileSpace(String root, String secret, boolean isReadMode) {
 
         this.isReadMode = isReadMode;
@@ -157,72 +190,36 @@ public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IR
     }    
     
     @Override
-    protected Snapshot scan(List<Pattern> filters) {
+    protected Snapshot scan(PathFilter filters) {
         try {
-            Map<String, FileSnapshot> files = new LinkedHashMap<>();
-            Set<String> dirs = new HashSet<>();
-            dirs.add("");
+            ScanResult result = new ScanResult(scanListener);
+            result.addDirectory("");
             
-            for (ListBlobItem blobItem : container.listBlobs(rootPath.isEmpty()? "" : rootPath + "/", true, null, null, null)) {
-                CloudBlockBlob blob = (CloudBlockBlob)blobItem;
-                
-                if (isExcluded(blob.getName()) || isFiltered(blob.getName(), filters)) continue;
-                
-                blob.downloadAttributes();
-                HashMap<String, String> meta = blob.getMetadata();
-                
-                String type = meta.get("type");
-                
-                if (type == null) {
-                    type = (blob.getName().endsWith("/") && (blob.getProperties().getLength() == 0))? "directory" : "file";
+            String rootPrefix = rootPath.isEmpty()? "" : rootPath + "/";
+            
+            if (listThreads > 1) {
+                ScanResult.PerThread partials = new ScanResult.PerThread(scanListener);
+                ForkJoinPool pool = new ForkJoinPool(listThreads);
+
+                try {
+                    pool.invoke(new ShardTask(rootPrefix, filters, partials));
                 }
-                
-               if (type.equals("directory") && writeDirectories) {
-                    String filePath = blob.getName().substring(0, blob.getName().lastIndexOf("/"));
-                    filePath = filePath.equals(rootPath)? "" : filePath.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
-                    dirs.add(filePath);
-                    System.out.println(String.format("Scanning azure://%s/%s", containerName, filePath));
+                finally {
+                    pool.shutdown();
                 }
-                else {
-                    String fileName = blob.getName();
-                    String filePath = "";
-                    
-                    if (!writeDirectories) {
-                        String dirPath = fileName.equals(rootPath)? "" : fileName.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
-                        List<String> dirsFromFile = parseDirs(dirPath);
-                        for (String dir : dirsFromFile) {
-                            boolean added = dirs.add(dir);
-                            if (added) {
-                                System.out.println(String.format("Scanning azure://%s/%s/%s", storageAccount.getCredentials().getAccountName(), containerName, dir));
-                            }
-                        }
-                    }
-                    
-                    if (fileName.contains("/")) {
-                        int fileNameSplitIndex = fileName.lastIndexOf("/");
-                        filePath = fileName.substring(0, fileNameSplitIndex);
-                        fileName = fileName.substring(fileNameSplitIndex + 1);
 
-                        filePath = filePath.equals(rootPath)? "" : filePath.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
-                    }
-
-                    if (filePath.equals("")) {
-                        filePath = fileName;
-                    }
-                    else {
-                        filePath = filePath + "/" + fileName;
-                    }
-
-                    String lastModifiedProp = meta.get("lastModified");
-                    Date lastModified = (lastModifiedProp == null)? blob.getProperties().getLastModified() : new Date(Long.parseLong(lastModifiedProp));
-
-                    FileSnapshot file = new FileSnapshot(fileName, blob.getProperties().getLength(), new DateTime(lastModified), filePath);
-                    files.put(filePath, file);
+                partials.merge(result);
+            }
+            else {
+                Stack<String> prefixes = new Stack<>();
+                prefixes.push(rootPrefix);
+                
+                while (!prefixes.isEmpty()) {
+                    prefixes.addAll(scanPrefix(prefixes.pop(), filters, result));
                 }
             }
             
-            Snapshot snapshot = new Snapshot(files, dirs);
-            return snapshot;
+            return result.toSnapshot();
         }
         catch (Exception ex) {
             System.out.println("Failed to scan file space");
@@ -231,7 +228,101 @@ public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IR
         
         return null;        
     }
+    
+    private void addBlob(CloudBlob blob, PathFilter filters, ScanResult result) throws URISyntaxException {
+        if (isExcluded(blob.getName()) || isFiltered(blob.getName(), filters)) return;
+        
+        HashMap<String, String> meta = blob.getMetadata();
+        
+        String type = meta.get("type");
+        
+        if (type == null) {
+            type = (blob.getName().endsWith("/") && (blob.getProperties().getLength() == 0))? "directory" : "file";
+        }
+        
+        if (type.equals("directory") && writeDirectories) {
+            String filePath = blob.getName().substring(0, blob.getName().lastIndexOf("/"));
+            filePath = filePath.equals(rootPath)? "" : filePath.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
+            result.addDirectory(filePath);
+            System.out.println(String.format("Scanning azure://%s/%s", containerName, filePath));
+        }
+        else {
+            String fileName = blob.getName();
+            String filePath = "";
+            
+            if (!writeDirectories) {
+                String dirPath = fileName.equals(rootPath)? "" : fileName.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
+                List<String> dirsFromFile = parseDirs(dirPath);
+                for (String dir : dirsFromFile) {
+                    boolean added = result.addDirectory(dir);
+                    if (added) {
+                        System.out.println(String.format("Scanning azure://%s/%s/%s", storageAccount.getCredentials().getAccountName(), containerName, dir));
+                    }
+                }
+            }
+            
+            if (fileName.contains("/")) {
+                int fileNameSplitIndex = fileName.lastIndexOf("/");
+                filePath = fileName.substring(0, fileNameSplitIndex);
+                fileName = fileName.substring(fileNameSplitIndex + 1);
+
+                filePath = filePath.equals(rootPath)? "" : filePath.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
+            }
+
+            if (filePath.equals("")) {
+                filePath = fileName;
+            }
+            else {
+                filePath = filePath + "/" + fileName;
+            }
+
+            String lastModifiedProp = meta.get("lastModified");
+            Date lastModified = (lastModifiedProp == null)? blob.getProperties().getLastModified() : new Date(Long.parseLong(lastModifiedProp));
+
+            FileSnapshot file = new FileSnapshot(fileName, blob.getProperties().getLength(), new DateTime(lastModified), filePath);
+            result.addFile(file);
+        }
+    }
 
+    // Lists the whole prefix at once, unless there are excluded paths under it. Such prefixes are listed by folders,
+    // and their subfolders, which are not excluded, are returned to be scanned separately
+    private List<String> scanPrefix(String prefix, PathFilter filters, ScanResult result) throws StorageException, URISyntaxException {
+        
+        if (!hasExcludesUnder(prefix)) {
+            for (ListBlobItem blobItem : container.listBlobs(prefix, true, listingDetails, null, null)) {
+                addBlob((CloudBlob)blobItem, filters, result);
+            }
+            
+            return new ArrayList<>();
+        }
+        
+        ResultSegment<ListBlobItem> firstLevel = container.listBlobsSegmented(prefix, false, listingDetails, null, null, null, null);
+        return withoutExcluded(scanListing(prefix, false, firstLevel, filters, result));
+    }
+    
+    // Adds all segments of the listing to the result, and returns blob directories found by the listing
+    private List<String> scanListing(String prefix, boolean flat, ResultSegment<ListBlobItem> segment, PathFilter filters, ScanResult result) throws StorageException, URISyntaxException {
+        
+        List<String> prefixes = new ArrayList<>();
+        
+        while (true) {
+            for (ListBlobItem blobItem : segment.getResults()) {
+                if (blobItem instanceof CloudBlobDirectory) {
+                    prefixes.add(((CloudBlobDirectory)blobItem).getPrefix());
+                }
+                else {
+                    addBlob((CloudBlob)blobItem, filters, result);
+                }
+            }
+            
+            if (!segment.getHasMoreResults()) break;
+            
+            segment = container.listBlobsSegmented(prefix, flat, listingDetails, null, segment.getContinuationToken(), null, null);
+        }
+        
+        return prefixes;
+    }
+    
     private List<String> parseDirs(String filePath) {
         List<String> dirs = new ArrayList<>();
         StringBuilder path = new StringBuilder();
@@ -306,6 +397,47 @@ public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IR
         return true;
     }
 
+    @Override
+    public Collection<String> deleteFiles(Collection<String> paths) {
+        return deleteBlobs(paths, false);
+    }
+
+    @Override
+    public Collection<String> deleteDirectories(Collection<String> paths) {
+        if (!writeDirectories) return new ArrayList<>();
+        return deleteBlobs(paths, true);
+    }
+    
+    private Collection<String> deleteBlobs(Collection<String> paths, final boolean isDirectory) {
+        
+        // Blob service has no batch delete, so deletes are sent in parallel instead
+        Map<String, Future<Boolean>> deletes = new LinkedHashMap<>();
+        for (final String path : paths) {
+            deletes.put(path, getRequestExecutor().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return isDirectory? deleteDirectory(path) : deleteFile(path);
+                }
+            }));
+        }
+        
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, Future<Boolean>> delete : deletes.entrySet()) {
+            try {
+                if (!delete.getValue().get()) {
+                    System.out.println(String.format("Failed to delete azure://%s/%s", containerName, delete.getKey()));
+                    failed.add(delete.getKey());
+                }
+            }
+            catch (InterruptedException | ExecutionException ex) {
+                System.out.println(String.format("Failed to delete azure://%s/%s: %s", containerName, delete.getKey(), ex.getMessage()));
+                failed.add(delete.getKey());
+            }
+        }
+        
+        return failed;
+    }
+
     @Override
     public boolean writeFile(InputStream fileStream, FileSnapshot file) {
         if (fileStream == null) return false;
@@ -316,6 +448,11 @@ public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IR
             meta.put("type", "file");
             meta.put("lastModified", file.getModifiedTimestamp().toDate().getTime() + "");
             blob.setMetadata(meta);
+            
+            if (file.getFileSize() > blockSize) {
+                return writeBlocks(blob, fileStream, file);
+            }
+            
             blob.upload(fileStream, file.getFileSize());
         }
         catch (StorageException | IOException | URISyntaxException ex) {
@@ -323,6 +460,75 @@ public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IR
         }
         return true;
     }
+    
+    private boolean writeBlocks(final CloudBlockBlob blob, InputStream fileStream, FileSnapshot file) {
+        
+        long contentLength = file.getFileSize();
+        int fileBlockSize = getBlockSize(contentLength);
+        
+        try {
+            // Stage several blocks at once, then commit them in order. Metadata set on the blob is sent with the commit
+            ChunkedUploader<BlockEntry> uploader = new ChunkedUploader<BlockEntry>(getUploadExecutor(), uploadThreads) {
+                @Override
+                protected BlockEntry uploadChunk(int blockNumber, byte[] data, int length) throws StorageException, IOException {
+                    String blockId = BaseEncoding.base64().encode(String.format("block-%08d", blockNumber).getBytes(StandardCharsets.UTF_8));
+                    blob.uploadBlock(blockId, new ByteArrayInputStream(data, 0, length), length);
+                    return new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED);
+                }
+            };
+            
+            System.out.println("Uploading " + Utils.readableFileSize(contentLength) + " in blocks of " + Utils.readableFileSize(fileBlockSize));
+            blob.commitBlockList(uploader.upload(fileStream, contentLength, fileBlockSize));
+        }
+        catch (Exception ex) {
+            System.out.println("Block upload failed: " + ex.getMessage());
+            return false;
+        }
+        finally {
+            try {
+                fileStream.close();
+            }
+            catch (IOException ex) {
+                System.out.println("Failed to close stream: " + ex.getMessage());
+            }
+        }
+        
+        return true;
+    }
+    
+    public void setBlockSize(long blockSize) {
+        this.blockSize = (int)Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = Math.max(1, uploadThreads);
+    }
+
+    public void setListThreads(int listThreads) {
+        this.listThreads = Math.max(1, listThreads);
+    }
+    
+    private int getBlockSize(long contentLength) {
+        // Grow blocks for very large files, so that the upload never goes over the blocks limit
+        long minBlockSize = (contentLength + MAX_BLOCK_COUNT - 1) / MAX_BLOCK_COUNT;
+        return (int)Math.min(MAX_BLOCK_SIZE, Math.max(blockSize, minBlockSize));
+    }
+    
+    private synchronized ExecutorService getRequestExecutor() {
+        if (requestExecutor == null) {
+            requestExecutor = Utils.createExecutor("azure-request", REQUEST_THREADS);
+        }
+        
+        return requestExecutor;
+    }
+    
+    private synchronized ExecutorService getUploadExecutor() {
+        if (uploadExecutor == null) {
+            uploadExecutor = Utils.createExecutor("azure-upload", uploadThreads);
+        }
+        
+        return uploadExecutor;
+    }
 
     @Override
     public boolean isMoveFileSupported() {
@@ -354,6 +560,108 @@ public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IR
         }
         return true;
     }
+
+    @Override
+    public Collection<String> moveFiles(Map<String, String> moves) {
+        
+        List<String> failed = new ArrayList<>();
+        List<PendingCopy> pending = new ArrayList<>();
+        Iterator<Map.Entry<String, String>> nextMoves = moves.entrySet().iterator();
+        
+        try {
+            while (nextMoves.hasNext() || !pending.isEmpty()) {
+
+                // Keep a bounded number of copies running on the server
+                while (nextMoves.hasNext() && (pending.size() < MAX_PENDING_COPIES)) {
+                    Map.Entry<String, String> move = nextMoves.next();
+                    pending.add(new PendingCopy(move.getKey(), move.getValue()));
+                }
+
+                // Start new copies and poll running ones, all at once
+                List<Future<CopyStatus>> polls = new ArrayList<>();
+                for (PendingCopy copy : pending) {
+                    polls.add(getRequestExecutor().submit(copy));
+                }
+
+                List<PendingCopy> stillPending = new ArrayList<>();
+                for (int i=0; i<pending.size(); i++) {
+                    PendingCopy copy = pending.get(i);
+                    CopyStatus status;
+                    
+                    try {
+                        status = polls.get(i).get();
+                    }
+                    catch (ExecutionException ex) {
+                        System.out.println(String.format("Failed to move azure://%s/%s: %s", containerName, copy.oldPath, ex.getCause().getMessage()));
+                        status = CopyStatus.FAILED;
+                    }
+
+                    if (status.equals(CopyStatus.PENDING)) {
+                        stillPending.add(copy);
+                    }
+                    else if (!status.equals(CopyStatus.SUCCESS)) {
+                        failed.add(copy.oldPath);
+                    }
+                }
+
+                pending = stillPending;
+                boolean canStartMore = nextMoves.hasNext() && (pending.size() < MAX_PENDING_COPIES);
+                
+                if (!pending.isEmpty() && !canStartMore) {
+                    System.out.println("Waiting for " + pending.size() + " copies to complete");
+                    Thread.sleep(COPY_POLL_INTERVAL);
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            System.out.println("Moves were interrupted: " + ex.getMessage());
+            
+            for (PendingCopy copy : pending) {
+                failed.add(copy.oldPath);
+            }
+            while (nextMoves.hasNext()) {
+                failed.add(nextMoves.next().getKey());
+            }
+        }
+        
+        return failed;
+    }
+    
+    // One step of a server side move: starts the copy on first call, checks its state afterwards, and deletes the source once the copy is done
+    private class PendingCopy implements Callable<CopyStatus> {
+        
+        private final String oldPath;
+        private final String newPath;
+        private CloudBlockBlob fromBlob;
+        private CloudBlockBlob toBlob;
+        
+        public PendingCopy(String oldPath, String newPath) {
+            this.oldPath = oldPath;
+            this.newPath = newPath;
+        }
+        
+        @Override
+        public CopyStatus call() throws StorageException, URISyntaxException {
+            
+            if (toBlob == null) {
+                fromBlob = container.getBlockBlobReference(toAbsoluteFilePath(oldPath));
+                toBlob = container.getBlockBlobReference(toAbsoluteFilePath(newPath));
+                toBlob.startCopyFromBlob(fromBlob);
+            }
+            else {
+                toBlob.downloadAttributes();
+            }
+            
+            CopyState state = toBlob.getProperties().getCopyState();
+            CopyStatus status = ((state == null) || (state.getStatus() == null))? CopyStatus.PENDING : state.getStatus();
+            
+            if (status.equals(CopyStatus.SUCCESS)) {
+                fromBlob.delete();
+            }
+            
+            return status;
+        }
+    }
         
     private String wrapCredentials(final String storageAccount, final String secret) {
         return String.format("DefaultEndpointsProtocol=https;AccountName=%s;AccountKey=%s", storageAccount, secret);
@@ -374,4 +682,46 @@ public class AzureFileSpace extends FileSpace implements IScannableFileSpace, IR
                         return 0;
                     }
                 };
+    
+    // Lists a single prefix. Prefixes too large for a single segment are split by their subfolders,
+    // so that every worker lists its own part of the container
+    private class ShardTask extends RecursiveAction {
+        
+        private final String prefix;
+        private final PathFilter filters;
+        private final ScanResult.PerThread partials;
+        
+        public ShardTask(String prefix, PathFilter filters, ScanResult.PerThread partials) {
+            this.prefix = prefix;
+            this.filters = filters;
+            this.partials = partials;
+        }
+        
+        @Override
+        protected void compute() {
+            try {
+                // Prefixes with excluded paths under them are always split, so that excluded subfolders are never listed
+                if (!hasExcludesUnder(prefix)) {
+                    ResultSegment<ListBlobItem> firstSegment = container.listBlobsSegmented(prefix, true, listingDetails, null, null, null, null);
+
+                    if (!firstSegment.getHasMoreResults()) {
+                        scanListing(prefix, true, firstSegment, filters, partials.get());
+                        return;
+                    }
+                }
+
+                ResultSegment<ListBlobItem> firstLevel = container.listBlobsSegmented(prefix, false, listingDetails, null, null, null, null);
+                List<ShardTask> subtasks = new ArrayList<>();
+
+                for (String subprefix : withoutExcluded(scanListing(prefix, false, firstLevel, filters, partials.get()))) {
+                    subtasks.add(new ShardTask(subprefix, filters, partials));
+                }
+
+                invokeAll(subtasks);
+            }
+            catch (StorageException | URISyntaxException ex) {
+                throw new RuntimeException("Failed to scan azure://" + containerName + "/" + prefix + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
 }
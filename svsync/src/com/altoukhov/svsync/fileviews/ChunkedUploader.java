@@ -0,0 +1,165 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync.fileviews;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.altoukhov.svsync.BufferPool;
+import com.altoukhov.svsync.Utils;
+
+/**
+ * Splits a stream into chunks and uploads several chunks at once.
+ * The stream is read sequentially into a bounded set of buffers from the shared pool,
+ * so at most maxInFlight chunks are held in memory per upload.
+ *
+ * @author Alex Altoukhov
+ * @param <T> result of a single chunk upload
+ */
+abstract class ChunkedUploader<T> {
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+
+    public ChunkedUploader(ExecutorService executor, int maxInFlight) {
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    protected abstract T uploadChunk(int chunkNumber, byte[] data, int length) throws Exception;
+
+    public List<T> upload(InputStream stream, long contentLength, int chunkSize) throws Exception {
+
+        BufferPool pool = BufferPool.getShared();
+        BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(maxInFlight);
+        int allocatedBuffers = 0;
+        byte[] buffer = null;
+
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        List<Future<T>> chunks = new ArrayList<>();
+        int completedChunks = 0;
+
+        try {
+            long position = 0;
+
+            for (int i = 1; position < contentLength; i++) {
+
+                int length = (int)Math.min(chunkSize, contentLength - position);
+
+                // The first buffer is taken before anything is read, so the upload never waits for the budget while
+                // read-ahead buffers of the same file are held. More are taken only while the shared budget allows
+                buffer = freeBuffers.poll();
+                if ((buffer == null) && (allocatedBuffers < maxInFlight)) {
+                    buffer = (allocatedBuffers == 0)? pool.acquire(chunkSize) : pool.tryAcquire(chunkSize);
+                    if (buffer != null) allocatedBuffers++;
+                }
+                if (buffer == null) {
+                    buffer = freeBuffers.take();
+                }
+
+                ByteStreams.readFully(stream, buffer, 0, length);
+                chunks.add(executor.submit(new ChunkJob(i, buffer, length, freeBuffers, aborted)));
+                buffer = null;
+
+                position += length;
+
+                // Stop reading as soon as any finished chunk has failed
+                while ((completedChunks < chunks.size()) && chunks.get(completedChunks).isDone()) {
+                    chunks.get(completedChunks).get();
+                    completedChunks++;
+                }
+            }
+
+            List<T> results = new ArrayList<>();
+            for (Future<T> chunk : chunks) {
+                results.add(chunk.get());
+            }
+
+            return results;
+        }
+        catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception)? (Exception)ex.getCause() : ex;
+        }
+        finally {
+            aborted.set(true);
+            awaitAll(chunks);
+
+            pool.release(buffer);
+            for (byte[] freeBuffer : freeBuffers) {
+                pool.release(freeBuffer);
+            }
+        }
+    }
+
+    // Every chunk job hands its buffer back when it ends, so wait for all of them before returning buffers to the pool
+    private void awaitAll(List<Future<T>> chunks) {
+        for (Future<T> chunk : chunks) {
+            try {
+                chunk.get();
+            }
+            catch (ExecutionException ex) {
+                // Already reported
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private class ChunkJob implements Callable<T> {
+
+        private final int chunkNumber;
+        private final byte[] buffer;
+        private final int length;
+        private final BlockingQueue<byte[]> freeBuffers;
+        private final AtomicBoolean aborted;
+
+        public ChunkJob(int chunkNumber, byte[] buffer, int length, BlockingQueue<byte[]> freeBuffers, AtomicBoolean aborted) {
+            this.chunkNumber = chunkNumber;
+            this.buffer = buffer;
+            this.length = length;
+            this.freeBuffers = freeBuffers;
+            this.aborted = aborted;
+        }
+
+        @Override
+        public T call() throws Exception {
+            try {
+                if (aborted.get()) {
+                    throw new IOException("Upload was aborted");
+                }
+
+                T result = uploadChunk(chunkNumber, buffer, length);
+                System.out.println("Uploaded part " + chunkNumber + ", " + Utils.readableFileSize(length));
+                return result;
+            }
+            finally {
+                freeBuffers.offer(buffer);
+            }
+        }
+    }
+}
@@ -19,8 +19,6 @@ package com.altoukhov.svsync.fileviews;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import com.altoukhov.svsync.Snapshot;
 
 /**
@@ -29,44 +27,60 @@ import com.altoukhov.svsync.Snapshot;
 public abstract class FileSpace {
     
     protected final List<String> excludes = new ArrayList<>();
+    private PrefixSet compiledExcludes = new PrefixSet(excludes);
+    protected IScanListener scanListener;
+    
+    public void setScanListener(IScanListener scanListener) {
+        this.scanListener = scanListener;
+    }
     
     public Snapshot scan(Collection<String> filters) {
-        return scan(compileFilters(filters));
+        return scan(filters, null);
+    }
+    
+    public Snapshot scan(Collection<String> filters, Snapshot previous) {
+        return scan(prepareScan(filters), previous);
     }
 
-    protected abstract Snapshot scan(List<Pattern> filters);
+    protected abstract Snapshot scan(PathFilter filters);
     
-    protected static List<Pattern> compileFilters(Collection<String> filters) {
-        List<Pattern> compiled = new ArrayList<>();
-        
-        for (String filter : filters) {
-            compiled.add(Pattern.compile(filter));
-        }
-        
-        return compiled;
+    protected Snapshot scan(PathFilter filters, Snapshot previous) {
+        return scan(filters);
     }
     
-    protected static boolean isFiltered(String path, Collection<Pattern> filters) {
-     
-        for (Pattern pattern : filters) {
-            Matcher m = pattern.matcher(path);
-            
-            if (m.find()) {
-                return true;
-            }
-        }
-        
-        return false;
+    // Excludes are added by subclass constructors, so they are compiled on every scan
+    protected PathFilter prepareScan(Collection<String> filters) {
+        compiledExcludes = new PrefixSet(excludes);
+        return compileFilters(filters);
     }
     
-    protected boolean isExcluded(String path) {
+    protected static PathFilter compileFilters(Collection<String> filters) {
+        return new PathFilter(filters);
+    }
+    
+    protected static boolean isFiltered(String path, PathFilter filters) {
+        return filters.matches(path);
+    }
+    
+    // Tells whether any excluded path lies under the prefix. Such prefixes are listed folder by folder,
+    // so that excluded subfolders can be skipped without listing them
+    protected boolean hasExcludesUnder(String prefix) {
+        return compiledExcludes.hasPrefixesUnder(prefix);
+    }
+    
+    protected List<String> withoutExcluded(List<String> prefixes) {
         
-        for (String exclude : excludes) {
-            if (path.startsWith(exclude)) {
-                return true;
+        List<String> included = new ArrayList<>();
+        for (String prefix : prefixes) {
+            if (!isExcluded(prefix)) {
+                included.add(prefix);
             }
         }
         
-        return false;
+        return included;
+    }
+    
+    protected boolean isExcluded(String path) {
+        return compiledExcludes.containsPrefixOf(path);
     }
 }
@@ -24,4 +24,10 @@ import com.altoukhov.svsync.Snapshot;
  */
 public interface IScannableFileSpace {
     Snapshot scan(Collection<String> filters);
+    
+    // File spaces, which support incremental scans, rescan only what changed since the previous snapshot
+    Snapshot scan(Collection<String> filters, Snapshot previous);
+    
+    // Entries found by the following scans are also passed to the listener, as soon as they are found
+    void setScanListener(IScanListener listener);
 }
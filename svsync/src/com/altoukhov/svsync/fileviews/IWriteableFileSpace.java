@@ -17,6 +17,8 @@ limitations under the License.
 package com.altoukhov.svsync.fileviews;
 
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
 import com.altoukhov.svsync.FileSnapshot;
 
 /**
@@ -27,8 +29,16 @@ public interface IWriteableFileSpace {
     boolean deleteDirectory(String path);
     
     boolean deleteFile(String path);
+    
+    // Batch deletes return the paths that failed to be deleted
+    Collection<String> deleteFiles(Collection<String> paths);
+    Collection<String> deleteDirectories(Collection<String> paths);
+    
     boolean writeFile(InputStream fileStream, FileSnapshot file);
     
     boolean isMoveFileSupported();
     boolean moveFile(String oldPath, String newPath);
+    
+    // Batch moves take old paths mapped to new ones, and return the old paths that failed to be moved
+    Collection<String> moveFiles(Map<String, String> moves);
 }
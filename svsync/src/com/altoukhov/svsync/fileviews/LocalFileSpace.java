@@ -17,26 +17,36 @@ limitations under the License.
 package com.altoukhov.svsync.fileviews;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Stack;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import com.altoukhov.svsync.BufferPool;
 import com.altoukhov.svsync.FileSnapshot;
 import com.altoukhov.svsync.Snapshot;
+import com.altoukhov.svsync.Utils;
 
 /**
  * @author Alex Altoukhov
@@ -45,6 +55,9 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
     
     private String rootPath;
     private String rootSuffix = "";
+    private int scanThreads = 1;
+    private boolean incrementalScan = false;
+    private int fullScanDays = 0;
     
     private LocalFileSpace(String root) {
         rootPath = trimFilePath(root);
@@ -85,39 +98,143 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
         return false;
     }
     
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = Math.max(1, scanThreads);
+    }
+    
+    public void setIncrementalScan(boolean incrementalScan) {
+        this.incrementalScan = incrementalScan;
+    }
+
+    public void setFullScanDays(int fullScanDays) {
+        this.fullScanDays = Math.max(0, fullScanDays);
+    }
+    
+    @Override
+    protected Snapshot scan(PathFilter filters) {
+        return scanFolders(filters, null);
+    }
+    
     @Override
-    protected Snapshot scan(List<Pattern> filters) {
+    protected Snapshot scan(PathFilter filters, Snapshot previous) {
+        if (!incrementalScan) return scan(filters);
+        
+        DateTime now = DateTime.now(DateTimeZone.UTC);
+        String settings = rootPath + excludes + filters.getFilters();
+        
+        // Changed excludes or filters may bring back entries, which the previous scan skipped
+        boolean isFullScan = (previous == null) || (previous.getFullScanTimestamp() == null) || !settings.equals(previous.getScanSettings()) ||
+                ((fullScanDays > 0) && previous.getFullScanTimestamp().plusDays(fullScanDays).isBefore(now));
+        
+        System.out.println(isFullScan? "Scanning all folders of " + rootPath : "Scanning changed folders of " + rootPath);
+        
+        Snapshot snapshot = scanFolders(filters, new ScanHistory(isFullScan? null : previous, now.getMillis()));
+        
+        if (snapshot != null) {
+            snapshot.setScanSettings(settings);
+            snapshot.setFullScanTimestamp(isFullScan? now : previous.getFullScanTimestamp());
+        }
+        
+        return snapshot;
+    }
+    
+    // Lists the given folders and whole subtrees only, for callers which know where changes happened.
+    // Folders, which are gone, hidden, excluded or filtered, are left out of the snapshot
+    public Snapshot scan(Collection<String> filters, Collection<String> folders, Collection<String> trees) {
+        try {
+            PathFilter compiledFilters = prepareScan(filters);
+            ScanResult result = new ScanResult(scanListener);
+            
+            for (String folder : folders) {
+                Folder listed = toFolder(folder, compiledFilters);
+                
+                if (listed != null) {
+                    result.addDirectory(folder);
+                    listDirectory(listed, compiledFilters, result, new ArrayList<Folder>());
+                }
+            }
+            
+            for (String tree : trees) {
+                Folder root = toFolder(tree, compiledFilters);
+                
+                if (root != null) {
+                    result.addDirectory(tree);
+                    scanTree(root, compiledFilters, null, result);
+                }
+            }
+            
+            return result.toSnapshot();
+        }
+        catch (SecurityException ex) {
+            System.out.println("Failed to scan file space");
+            System.out.println(ex.getMessage());
+        }
+        
+        return null;
+    }
+    
+    // Lists folders of the given subtrees, which a scan would go into. Hidden, excluded and filtered folders are skipped with everything in them
+    public List<String> listFolders(Collection<String> filters, Collection<String> trees) {
+        
+        final PathFilter compiledFilters = prepareScan(filters);
+        final List<String> folders = new ArrayList<>();
+        
+        for (final String tree : trees) {
+            final Folder root = toFolder(tree, compiledFilters);
+            if (root == null) continue;
+            
+            try {
+                Files.walkFileTree(root.path, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                        
+                        String relativePath = root.path.relativize(dir).toString().replace(File.separatorChar, '/');
+                        if (!tree.isEmpty()) relativePath = relativePath.isEmpty()? tree : tree + "/" + relativePath;
+                        
+                        if (!dir.equals(root.path)) {
+                            BasicFileAttributes dirAttributes = (attributesType == BasicFileAttributes.class)? attributes : Files.readAttributes(dir, attributesType);
+                            
+                            if (isHidden(dir.getFileName().toString(), dirAttributes) || isExcluded(dir.toString()) || isFiltered(relativePath + "/", compiledFilters)) {
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                        }
+                        
+                        folders.add(relativePath);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                        // Folders deleted meanwhile are reported by their parents' watches
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            catch (IOException ex) {
+                System.out.println("Failed to list folders of " + root.path + ": " + ex.getMessage());
+            }
+        }
+        
+        return folders;
+    }
+    
+    public Path getRootPath() {
+        return Paths.get(rootPath);
+    }
+    
+    private Snapshot scanFolders(PathFilter filters, ScanHistory history) {
         try {        
-            Map<String, FileSnapshot> files = new LinkedHashMap<>();
-            Set<String> dirs = new HashSet<>();
+            ScanResult result = new ScanResult(scanListener);
 
             File root = new File(rootPath);
 
             if (root.exists()) {
-
-                Stack<File> stack = new Stack<>();
-                stack.push(root);
-                dirs.add("");
-
-                while (!stack.isEmpty()) {
-                    File currentFolder = stack.pop();
-
-                    for (final File file : currentFolder.listFiles(filter)) {
-
-                        if (file.isFile() && !isExcluded(trimFilePath(file.getAbsolutePath())) && !isFiltered(toRelativePath(file.getAbsolutePath()), filters)) {
-                            FileSnapshot fileSnapshot = new FileSnapshot(file.getName(), file.length(), new DateTime(new Date(file.lastModified())), toRelativePath(file.getAbsolutePath()));
-                            files.put(fileSnapshot.getRelativePath(), fileSnapshot);
-                        }
-                        else if (file.isDirectory() && !isExcluded(trimFilePath(file.getAbsolutePath())) && !isFiltered(toRelativePath(file.getAbsolutePath(), true), filters)) {
-                            stack.push(file);
-                            dirs.add(toRelativePath(file.getAbsolutePath()));
-                            System.out.println("Scanning " + file.getAbsolutePath());
-                        }
-                    }
-                }
-            }        
-            Snapshot snapshot = new Snapshot(files, dirs);
-            return snapshot;
+                
+                result.addDirectory("");
+                scanTree(new Folder(root.toPath(), "", root.lastModified()), filters, history, result);
+            }
+            
+            return result.toSnapshot();
         }
         catch (SecurityException ex) {
             System.out.println("Failed to scan file space");
@@ -127,6 +244,216 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
         return null;
     }    
     
+    private void scanTree(Folder root, PathFilter filters, ScanHistory history, ScanResult result) {
+        
+        if (scanThreads > 1) {
+            ScanResult.PerThread partials = new ScanResult.PerThread(scanListener);
+            ForkJoinPool pool = new ForkJoinPool(scanThreads);
+
+            try {
+                pool.invoke(new ScanTask(root, filters, history, partials));
+            }
+            finally {
+                pool.shutdown();
+            }
+
+            partials.merge(result);
+        }
+        else {
+            Stack<Folder> stack = new Stack<>();
+            stack.push(root);
+
+            while (!stack.isEmpty()) {
+                stack.addAll(scanDirectory(stack.pop(), filters, history, result));
+            }
+        }
+    }
+    
+    // Returns the folder if a full scan would list it, checking every folder on the way from the root
+    private Folder toFolder(String relativePath, PathFilter filters) {
+        
+        Path path = getRootPath();
+        BasicFileAttributes attributes;
+        
+        try {
+            attributes = Files.readAttributes(path, attributesType);
+            
+            if (!relativePath.isEmpty()) {
+                String parent = "";
+                
+                for (String name : relativePath.split("/")) {
+                    path = path.resolve(name);
+                    parent = parent.isEmpty()? name : parent + "/" + name;
+                    attributes = Files.readAttributes(path, attributesType);
+                    
+                    if (!attributes.isDirectory() || isHidden(name, attributes) || isExcluded(path.toString()) || isFiltered(parent + "/", filters)) {
+                        return null;
+                    }
+                }
+            }
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        
+        return attributes.isDirectory()? new Folder(path, relativePath, attributes.lastModifiedTime().toMillis()) : null;
+    }
+    
+    // Adds files of a single folder to the result, and returns its subfolders that need to be scanned
+    private List<Folder> scanDirectory(Folder folder, PathFilter filters, ScanHistory history, ScanResult result) {
+        
+        if ((history != null) && history.isUnchanged(folder.relativePath, folder.modifiedTime)) {
+            List<Folder> subfolders = reuseDirectory(folder, history, result);
+            
+            if (subfolders != null) {
+                return subfolders;
+            }
+        }
+        
+        List<Folder> subfolders = new ArrayList<>();
+        
+        if (listDirectory(folder, filters, result, subfolders) && (history != null) && history.isSettled(folder.modifiedTime)) {
+            result.setDirectoryTimestamp(folder.relativePath, folder.modifiedTime);
+        }
+        
+        return subfolders;
+    }
+    
+    // Takes entries of a folder, which has not changed since the previous scan, from the previous snapshot.
+    // Files changed in place don't change the folder, they are found by periodic full scans. Returns null if the folder has to be listed
+    private List<Folder> reuseDirectory(Folder folder, ScanHistory history, ScanResult result) {
+        
+        List<Folder> subfolders = new ArrayList<>();
+        
+        for (String dir : history.getFolders(folder.relativePath)) {
+            Path path = folder.path.resolve(dir.substring(dir.lastIndexOf('/') + 1));
+            
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attributes.isDirectory()) return null;
+                
+                subfolders.add(new Folder(path, dir, attributes.lastModifiedTime().toMillis()));
+            }
+            catch (IOException ex) {
+                return null;
+            }
+        }
+        
+        for (Folder subfolder : subfolders) {
+            result.addDirectory(subfolder.relativePath);
+            System.out.println("Scanning " + subfolder.path);
+        }
+        
+        for (FileSnapshot file : history.getFiles(folder.relativePath)) {
+            result.addFile(file);
+        }
+        
+        result.setDirectoryTimestamp(folder.relativePath, folder.modifiedTime);
+        return subfolders;
+    }
+    
+    // Attributes of each entry are read with a single call, and paths are built once from the parent folder
+    private boolean listDirectory(Folder folder, PathFilter filters, ScanResult result, List<Folder> subfolders) {
+        
+        DirectoryStream<Path> entries = null;
+        
+        try {
+            entries = Files.newDirectoryStream(folder.path);
+            
+            for (Path entry : entries) {
+                
+                String name = entry.getFileName().toString();
+                BasicFileAttributes attributes;
+                
+                try {
+                    attributes = Files.readAttributes(entry, attributesType);
+                }
+                catch (IOException ex) {
+                    // Broken links and files deleted while scanning
+                    System.out.println("Failed to read attributes of " + entry + ": " + ex.getMessage());
+                    continue;
+                }
+                
+                if (isHidden(name, attributes)) continue;
+                
+                String absolutePath = entry.toString();
+                String relativePath = folder.relativePath.isEmpty()? name : folder.relativePath + "/" + name;
+                
+                if (attributes.isRegularFile() && !isExcluded(absolutePath) && !isFiltered(relativePath, filters)) {
+                    FileSnapshot fileSnapshot = new FileSnapshot(name, attributes.size(), new DateTime(attributes.lastModifiedTime().toMillis()), relativePath);
+                    result.addFile(fileSnapshot);
+                }
+                else if (attributes.isDirectory() && !isExcluded(absolutePath) && !isFiltered(relativePath + "/", filters)) {
+                    subfolders.add(new Folder(entry, relativePath, attributes.lastModifiedTime().toMillis()));
+                    result.addDirectory(relativePath);
+                    System.out.println("Scanning " + absolutePath);
+                }
+            }
+            
+            return true;
+        }
+        catch (IOException | DirectoryIteratorException ex) {
+            System.out.println("Failed to list " + folder.path + ": " + ex.getMessage());
+            return false;
+        }
+        finally {
+            try {
+                if (entries != null) entries.close();
+            }
+            catch (IOException ex) {
+                System.out.println("Failed to close " + folder.path + ": " + ex.getMessage());
+            }
+        }
+    }
+    
+    private static boolean isHidden(String name, BasicFileAttributes attributes) {
+        if (attributes instanceof DosFileAttributes) {
+            return ((DosFileAttributes)attributes).isHidden();
+        }
+        
+        return name.startsWith(".");
+    }
+    
+    private static class Folder {
+        
+        private final Path path;
+        private final String relativePath;
+        private final long modifiedTime;
+        
+        public Folder(Path path, String relativePath, long modifiedTime) {
+            this.path = path;
+            this.relativePath = relativePath;
+            this.modifiedTime = modifiedTime;
+        }
+    }
+    
+    private class ScanTask extends RecursiveAction {
+        
+        private final Folder folder;
+        private final PathFilter filters;
+        private final ScanHistory history;
+        private final ScanResult.PerThread partials;
+        
+        public ScanTask(Folder folder, PathFilter filters, ScanHistory history, ScanResult.PerThread partials) {
+            this.folder = folder;
+            this.filters = filters;
+            this.history = history;
+            this.partials = partials;
+        }
+        
+        @Override
+        protected void compute() {
+            List<ScanTask> subtasks = new ArrayList<>();
+            
+            for (Folder subfolder : scanDirectory(folder, filters, history, partials.get())) {
+                subtasks.add(new ScanTask(subfolder, filters, history, partials));
+            }
+            
+            // Idle workers steal subfolders from busy ones
+            invokeAll(subtasks);
+        }
+    }
+    
     @Override
     public InputStream readFile(String path){
         
@@ -189,6 +516,16 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
         return dir.delete();
     }
 
+    @Override
+    public Collection<String> deleteFiles(Collection<String> paths) {
+        return Utils.deleteEach(this, paths, false);
+    }
+
+    @Override
+    public Collection<String> deleteDirectories(Collection<String> paths) {
+        return Utils.deleteEach(this, paths, true);
+    }
+
     @Override
     public boolean isMoveFileSupported() {
         return true;
@@ -200,13 +537,16 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
         File newFile = new File(toAbsolutePath(newPath));
         return oldFile.renameTo(newFile);
     }
+
+    @Override
+    public Collection<String> moveFiles(Map<String, String> moves) {
+        return Utils.moveEach(this, moves);
+    }
     
-    private final FileFilter filter = new FileFilter() {
-            @Override
-            public boolean accept(File file) {
-                return !file.isHidden();
-            }
-        };
+    // Hidden flag is an attribute on Windows, and a name prefix elsewhere. Other systems may support
+    // the dos view too, but reading it costs extended attribute lookups and ignores dot files
+    private static final Class<? extends BasicFileAttributes> attributesType = 
+            (File.separatorChar == '\\')? DosFileAttributes.class : BasicFileAttributes.class;
     
     @Override
     public boolean writeFile(InputStream fileStream, FileSnapshot file) {
@@ -214,6 +554,7 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
         if (fileStream == null) return false;
         
         OutputStream out = null;
+        byte[] buffer = null;
         long bytesWritten = 0;
         boolean setTimestamp = false;
         
@@ -224,17 +565,19 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
                 return false;
             }
                 
-            if (file.isLargeFile()) {
-                bytesWritten = IOUtils.copyLarge(fileStream, out);
-            }
-            else {
-                bytesWritten = IOUtils.copy(fileStream, out);
-            }            
+            buffer = BufferPool.getShared().acquire(BufferPool.COPY_BUFFER_SIZE);
+            bytesWritten = IOUtils.copyLarge(fileStream, out, buffer);
         }
         catch (IOException ex) {
             System.out.println("Failed to copy file: " + ex.getMessage());
         }
+        catch (InterruptedException ex) {
+            System.out.println("Copy was interrupted: " + ex.getMessage());
+            Thread.currentThread().interrupt();
+        }
         finally {
+            BufferPool.getShared().release(buffer);
+            
             try {
                 if (fileStream != null) fileStream.close();
                 if (out != null) out.close();
@@ -248,6 +591,42 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
         return setTimestamp && (bytesWritten == file.getFileSize());
     }
     
+    public boolean copyFile(LocalFileSpace source, FileSnapshot file) {
+        
+        FileChannel in = null;
+        FileChannel out = null;
+        long bytesWritten = 0;
+        boolean setTimestamp = false;
+        
+        try {
+            in = FileChannel.open(Paths.get(source.toAbsolutePath(file.getRelativePath())), StandardOpenOption.READ);
+            out = FileChannel.open(Paths.get(toAbsolutePath(file.getRelativePath())), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            
+            // Channel to channel transfer lets the OS copy the data without passing it through user space
+            long size = in.size();
+            while (bytesWritten < size) {
+                long transferred = in.transferTo(bytesWritten, size - bytesWritten, out);
+                if (transferred <= 0) break;
+                bytesWritten += transferred;
+            }
+        }
+        catch (IOException ex) {
+            System.out.println("Failed to copy file: " + ex.getMessage());
+        }
+        finally {
+            try {
+                if (in != null) in.close();
+                if (out != null) out.close();
+            }
+            catch (IOException ex) {
+                System.out.println("Failed to close channel: " + ex.getMessage());
+            }
+        }
+        
+        setTimestamp = setFileTimestamp(file.getRelativePath(), file.getModifiedTimestamp());
+        return setTimestamp && (bytesWritten == file.getFileSize());
+    }
+    
     /*private boolean isExcluded(String file) {
         
         file = trimFilePath(file);
@@ -268,26 +647,4 @@ public class LocalFileSpace extends FileSpace implements IScannableFileSpace, IR
     private String toAbsolutePath(String path) {
         return String.format("%s%s%s", rootPath, File.separator, path.replace("/", File.separator));
     }
-
-    private String toRelativePath(String path) {
-        return toRelativePath(path, false);
-    }
-        
-    private String toRelativePath(String path, boolean withTrailingSlash) {
-        if (!path.startsWith(rootPath)) return path;
-        
-        String relative = path.substring(rootPath.length());
-        if (relative.startsWith(File.separator)) {
-            relative = relative.substring(1);
-        }
-        
-        if (withTrailingSlash && !relative.endsWith(File.separator)) {
-            relative = relative + File.separator;
-        }
-        if (!withTrailingSlash && relative.endsWith(File.separator)) {
-            relative = relative.substring(0, relative.length() - 1);
-        }
-        
-        return relative.replace("\\", "/");
-    }
 }
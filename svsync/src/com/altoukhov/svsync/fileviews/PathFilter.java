@@ -0,0 +1,244 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync.fileviews;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Filter regexes compiled for matching many paths.
+ *
+ * A path matches the filter when any of the regexes finds a match in it. Regexes that
+ * only match a literal file name, path suffix or whole path are answered with hash lookups.
+ * The rest are combined into a single alternation, so that every path is matched once,
+ * except for the few patterns that cannot be safely combined.
+ *
+ * @author Alex Altoukhov
+ */
+class PathFilter {
+
+    // Regex prefixes, which make a literal ending with $ match a whole file name, any path suffix,
+    // or a path suffix with at least one character before it
+    private static final String[] NAME_PREFIXES = {"(?:^|.*/)", "(^|.*/)", "(?:^|/)", "(^|/)"};
+    private static final String[] NONEMPTY_PREFIXES = {".+"};
+    private static final String[] SUFFIX_PREFIXES = {".*", ""};
+
+    private static final String META_CHARS = ".^$|?*+()[]{}";
+    private static final Pattern UNCOMBINABLE = Pattern.compile("\\\\[1-9kQ]|\\(\\?<[a-zA-Z]|#");
+
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    private final Set<String> names = new HashSet<>();
+    private final Set<String> paths = new HashSet<>();
+    private final Map<Integer, Map<String, Boolean>> suffixesByLength = new HashMap<>();
+
+    private Pattern combined;
+    private final List<Pattern> separate = new ArrayList<>();
+
+    public PathFilter(Collection<String> filters) {
+
+        List<String> complex = new ArrayList<>();
+
+        for (String filter : filters) {
+            // Every filter is compiled on its own too, so that syntax errors are reported as before
+            patterns.add(Pattern.compile(filter));
+
+            if (!addLiteral(filter)) {
+                complex.add(filter);
+            }
+        }
+
+        compileComplex(complex);
+    }
+
+    public List<String> getFilters() {
+        List<String> filters = new ArrayList<>();
+
+        for (Pattern pattern : patterns) {
+            filters.add(pattern.pattern());
+        }
+
+        return filters;
+    }
+
+    public boolean matches(String path) {
+
+        if (patterns.isEmpty()) return false;
+
+        // $ also matches before a final line terminator, which lookups don't expect
+        if (!path.isEmpty() && isLineTerminator(path.charAt(path.length() - 1))) {
+            return matchesAny(patterns, path);
+        }
+
+        if (!names.isEmpty() && names.contains(path.substring(path.lastIndexOf('/') + 1))) return true;
+        if (!paths.isEmpty() && paths.contains(path)) return true;
+
+        for (Map.Entry<Integer, Map<String, Boolean>> suffixes : suffixesByLength.entrySet()) {
+            int start = path.length() - suffixes.getKey();
+            if (start < 0) continue;
+
+            Boolean needsPrefix = suffixes.getValue().get(path.substring(start));
+
+            if ((needsPrefix != null) && (!needsPrefix || ((start > 0) && !isLineTerminator(path.charAt(start - 1))))) {
+                return true;
+            }
+        }
+
+        if ((combined != null) && combined.matcher(path).find()) return true;
+
+        return matchesAny(separate, path);
+    }
+
+    private boolean addLiteral(String filter) {
+
+        if (!filter.endsWith("$") || isEscaped(filter, filter.length() - 1)) return false;
+
+        for (String prefix : NAME_PREFIXES) {
+            if (filter.startsWith(prefix)) {
+                String name = toLiteral(filter.substring(prefix.length(), filter.length() - 1));
+                if ((name == null) || name.contains("/")) return false;
+
+                names.add(name);
+                return true;
+            }
+        }
+
+        if (filter.startsWith("^") && !filter.startsWith("^.")) {
+            String path = toLiteral(filter.substring(1, filter.length() - 1));
+            if (path == null) return false;
+
+            paths.add(path);
+            return true;
+        }
+
+        for (String prefix : NONEMPTY_PREFIXES) {
+            if (filter.startsWith(prefix)) {
+                return addSuffix(toLiteral(filter.substring(prefix.length(), filter.length() - 1)), true);
+            }
+        }
+
+        for (String prefix : SUFFIX_PREFIXES) {
+            if (filter.startsWith(prefix)) {
+                return addSuffix(toLiteral(filter.substring(prefix.length(), filter.length() - 1)), false);
+            }
+        }
+
+        return false;
+    }
+
+    private boolean addSuffix(String suffix, boolean needsPrefix) {
+        if (suffix == null) return false;
+
+        Map<String, Boolean> suffixes = suffixesByLength.get(suffix.length());
+        if (suffixes == null) {
+            suffixes = new HashMap<>();
+            suffixesByLength.put(suffix.length(), suffixes);
+        }
+
+        // A suffix without a required prefix matches more paths, so it wins over the same suffix with one
+        Boolean current = suffixes.get(suffix);
+        suffixes.put(suffix, (current == null)? needsPrefix : (current && needsPrefix));
+        return true;
+    }
+
+    private void compileComplex(List<String> filters) {
+
+        StringBuilder alternation = new StringBuilder();
+        List<Pattern> combinable = new ArrayList<>();
+
+        for (String filter : filters) {
+            // Group numbers, group names, quoting and comments may change meaning inside an alternation
+            if (UNCOMBINABLE.matcher(filter).find()) {
+                separate.add(Pattern.compile(filter));
+                continue;
+            }
+
+            if (alternation.length() > 0) alternation.append('|');
+            alternation.append("(?:").append(filter).append(')');
+            combinable.add(Pattern.compile(filter));
+        }
+
+        if (combinable.size() == 1) {
+            separate.addAll(combinable);
+        }
+        else if (!combinable.isEmpty()) {
+            try {
+                combined = Pattern.compile(alternation.toString());
+            }
+            catch (PatternSyntaxException ex) {
+                separate.addAll(combinable);
+            }
+        }
+    }
+
+    // Returns the text matched by a regex, which has no special characters but escaped ones, or null for other regexes
+    private static String toLiteral(String regex) {
+        if (regex.isEmpty()) return null;
+
+        StringBuilder literal = new StringBuilder();
+
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+
+            if (c == '\\') {
+                i++;
+                if ((i == regex.length()) || Character.isLetterOrDigit(regex.charAt(i))) return null;
+                literal.append(regex.charAt(i));
+            }
+            else if (META_CHARS.indexOf(c) >= 0) {
+                return null;
+            }
+            else {
+                literal.append(c);
+            }
+        }
+
+        return literal.toString();
+    }
+
+    private static boolean isEscaped(String regex, int index) {
+        int backslashes = 0;
+
+        while ((index - backslashes > 0) && (regex.charAt(index - backslashes - 1) == '\\')) {
+            backslashes++;
+        }
+
+        return (backslashes % 2) == 1;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return (c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029');
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String path) {
+
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).find()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync.fileviews;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of path prefixes kept in a trie, so that checking a path walks
+ * its characters once, however many prefixes there are.
+ *
+ * @author Alex Altoukhov
+ */
+class PrefixSet {
+
+    private final Node root = new Node();
+
+    public PrefixSet(Collection<String> prefixes) {
+        for (String prefix : prefixes) {
+            add(prefix);
+        }
+    }
+
+    public final void add(String prefix) {
+        Node node = root;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            Node child = node.children.get(prefix.charAt(i));
+
+            if (child == null) {
+                child = new Node();
+                node.children.put(prefix.charAt(i), child);
+            }
+
+            node = child;
+        }
+
+        node.isPrefix = true;
+    }
+
+    public boolean isEmpty() {
+        return !root.isPrefix && root.children.isEmpty();
+    }
+
+    // Tells whether the path starts with any prefix of the set
+    public boolean containsPrefixOf(String path) {
+        Node node = root;
+
+        for (int i = 0; node != null; i++) {
+            if (node.isPrefix) return true;
+            if (i == path.length()) return false;
+
+            node = node.children.get(path.charAt(i));
+        }
+
+        return false;
+    }
+
+    // Tells whether any prefix of the set starts with the path
+    public boolean hasPrefixesUnder(String path) {
+        if (isEmpty()) return false;
+
+        Node node = root;
+
+        for (int i = 0; (node != null) && (i < path.length()); i++) {
+            node = node.children.get(path.charAt(i));
+        }
+
+        // Nodes are created only on the way to a prefix, so any node has a prefix at or under it
+        return node != null;
+    }
+
+    private static class Node {
+
+        private final Map<Character, Node> children = new HashMap<>(4);
+        private boolean isPrefix;
+    }
+}
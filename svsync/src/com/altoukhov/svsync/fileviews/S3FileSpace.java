@@ -22,25 +22,34 @@ import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.collect.Iterables;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import org.joda.time.DateTime;
 import com.altoukhov.svsync.FileSnapshot;
 import com.altoukhov.svsync.Snapshot;
@@ -51,11 +60,31 @@ import com.altoukhov.svsync.Utils;
  */
 public class S3FileSpace extends FileSpace implements IScannableFileSpace, IReadableFileSpace, IWriteableFileSpace {
 
+    private static final long MB = 1024 * 1024;
+    private static final long MIN_PART_SIZE = 5 * MB;
+    private static final long MAX_PART_SIZE = 1024 * MB;
+    private static final long MAX_PART_COUNT = 10000;
+    private static final int MAX_DELETE_BATCH_SIZE = 1000;
+    
+    public static final long DEFAULT_MULTIPART_THRESHOLD = 64 * MB;
+    public static final long DEFAULT_PART_SIZE = 16 * MB;
+    public static final int DEFAULT_UPLOAD_THREADS = 4;
+    public static final int DEFAULT_SCAN_THREADS = 16;
+
     private final AmazonS3Client s3;
     private String bucketName;
     private String rootPath = "";
     private String rootSuffix = "";
     
+    private long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+    private long partSize = DEFAULT_PART_SIZE;
+    private int uploadThreads = DEFAULT_UPLOAD_THREADS;
+    private ExecutorService uploadExecutor;
+    
+    private int scanThreads = DEFAULT_SCAN_THREADS;
+    private int listThreads = 1;
+    private boolean scanMetadata = true;
+    
     private S3FileSpace(String root, String id, String secret) {
         
         s3 = new AmazonS3Client(wrapCredentials(id, secret));
@@ -120,69 +149,164 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
     }
 
     @Override
-    protected Snapshot scan(List<Pattern> filters) {
+    protected Snapshot scan(PathFilter filters) {
+        
+        // Timestamps written by svsync are kept in user metadata, which only a HEAD request returns
+        ExecutorService scanExecutor = scanMetadata? Utils.createExecutor("s3-scan", scanThreads) : null;
+        
         try {
-            Map<String, FileSnapshot> files = new LinkedHashMap<>();
-            Set<String> dirs = new HashSet<>();
+            ScanResult result = new ScanResult(scanListener);
+            String rootPrefix = rootPath.isEmpty()? "" : rootPath + "/";
+            
+            if (listThreads > 1) {
+                ScanResult.PerThread partials = new ScanResult.PerThread(scanListener);
+                ForkJoinPool pool = new ForkJoinPool(listThreads);
 
-            ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-            .withBucketName(bucketName)
-            .withPrefix(rootPath.isEmpty()? "" : rootPath + "/");
+                try {
+                    pool.invoke(new ShardTask(rootPrefix, filters, partials, scanExecutor));
+                }
+                finally {
+                    pool.shutdown();
+                }
 
-            ObjectListing objectListing;
+                partials.merge(result);
+            }
+            else {
+                Stack<String> prefixes = new Stack<>();
+                prefixes.push(rootPrefix);
+                
+                while (!prefixes.isEmpty()) {
+                    prefixes.addAll(scanPrefix(prefixes.pop(), filters, result, scanExecutor));
+                }
+            }
+            
+            return result.toSnapshot();
+        }
+        catch (AmazonClientException | InterruptedException | ExecutionException ex) {
+            System.out.println("Failed to scan file space");
+            System.out.println(ex.getMessage());
+        }
+        finally {
+            if (scanExecutor != null) {
+                scanExecutor.shutdownNow();
+            }
+        }
+        
+        return null;
+    }
+    
+    // Lists the whole prefix at once, unless there are excluded paths under it. Such prefixes are listed with a delimiter,
+    // and their subfolders, which are not excluded, are returned to be scanned separately
+    private List<String> scanPrefix(String prefix, PathFilter filters, ScanResult result, ExecutorService scanExecutor) throws InterruptedException, ExecutionException {
+        
+        ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+        .withBucketName(bucketName)
+        .withPrefix(prefix);
+        
+        if (!hasExcludesUnder(prefix)) {
+            scanListing(listObjectsRequest, null, filters, result, scanExecutor);
+            return new ArrayList<>();
+        }
+        
+        listObjectsRequest.setDelimiter("/");
+        return withoutExcluded(scanListing(listObjectsRequest, null, filters, result, scanExecutor));
+    }
+    
+    // Adds all pages of the listing to the result, and returns common prefixes of the listing.
+    // Metadata of each page is fetched while the next page is listed
+    private List<String> scanListing(ListObjectsRequest listObjectsRequest, ObjectListing objectListing, PathFilter filters, 
+            ScanResult result, ExecutorService scanExecutor) throws InterruptedException, ExecutionException {
+        
+        List<String> prefixes = new ArrayList<>();
+        List<PendingFile> previousPage = new ArrayList<>();
 
-            do {
+        while (true) {
+            if (objectListing == null) {
                 objectListing = listObjects(listObjectsRequest);
-                for (S3ObjectSummary objectSummary : objectListing.getObjectSummaries()) {
+            }
+            
+            List<PendingFile> currentPage = new ArrayList<>();
+            prefixes.addAll(objectListing.getCommonPrefixes());
 
-                    if (isExcluded(objectSummary.getKey()) || isFiltered(objectSummary.getKey(), filters)) continue;
+            for (final S3ObjectSummary objectSummary : objectListing.getObjectSummaries()) {
 
-                    if (objectSummary.getKey().endsWith("/")) {
-                        String filePath = trimPath(objectSummary.getKey());
-                        filePath = filePath.equals(rootPath)? "" : filePath.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
-                        dirs.add(filePath);
-                        System.out.println(String.format("Scanning s3://%s/%s", bucketName, objectSummary.getKey()));
+                if (isExcluded(objectSummary.getKey()) || isFiltered(objectSummary.getKey(), filters)) continue;
+
+                if (objectSummary.getKey().endsWith("/")) {
+                    String filePath = trimPath(objectSummary.getKey());
+                    filePath = filePath.equals(rootPath)? "" : filePath.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
+                    result.addDirectory(filePath);
+                    System.out.println(String.format("Scanning s3://%s/%s", bucketName, objectSummary.getKey()));
+                }
+                else {
+                    Future<ObjectMetadata> meta = null;
+
+                    if (scanExecutor != null) {
+                        meta = scanExecutor.submit(new Callable<ObjectMetadata>() {
+                            @Override
+                            public ObjectMetadata call() {
+                                return getObjectInfo(objectSummary);
+                            }
+                        });
                     }
-                    else {
-                        String fileName = objectSummary.getKey();
-                        String filePath = "";
 
-                        if (fileName.contains("/")) {
-                            int fileNameSplitIndex = fileName.lastIndexOf("/");
-                            filePath = fileName.substring(0, fileNameSplitIndex);
-                            fileName = fileName.substring(fileNameSplitIndex + 1);
+                    currentPage.add(new PendingFile(objectSummary, meta));
+                }
+            }
 
-                            filePath = filePath.equals(rootPath)? "" : filePath.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
-                        }
+            addFiles(previousPage, result);
+            previousPage = currentPage;
+            
+            if (!objectListing.isTruncated()) break;
+            
+            listObjectsRequest.setMarker(objectListing.getNextMarker());
+            objectListing = null;
+        }
 
-                        if (filePath.equals("")) {
-                            filePath = fileName;
-                        }
-                        else {
-                            filePath = filePath + "/" + fileName;
-                        }
+        addFiles(previousPage, result);
+        return prefixes;
+    }
+    
+    private void addFiles(List<PendingFile> page, ScanResult result) throws InterruptedException, ExecutionException {
+        for (PendingFile pendingFile : page) {
+            S3ObjectSummary objectSummary = pendingFile.summary;
+            
+            String fileName = objectSummary.getKey();
+            String filePath = "";
 
-                        ObjectMetadata meta = getObjectInfo(objectSummary);
-                        String lmd = meta.getUserMetaDataOf("lmd");
+            if (fileName.contains("/")) {
+                int fileNameSplitIndex = fileName.lastIndexOf("/");
+                filePath = fileName.substring(0, fileNameSplitIndex);
+                fileName = fileName.substring(fileNameSplitIndex + 1);
 
-                        Date lastModified = (lmd == null)? objectSummary.getLastModified() : new Date(Long.parseLong(lmd));
+                filePath = filePath.equals(rootPath)? "" : filePath.substring(rootPath.length() + (rootPath.isEmpty()? 0 : 1 ));
+            }
 
-                        FileSnapshot file = new FileSnapshot(fileName, objectSummary.getSize(), new DateTime(lastModified), filePath);
-                        files.put(filePath, file);
-                    }
-                }
-                listObjectsRequest.setMarker(objectListing.getNextMarker());
-            } while (objectListing.isTruncated());        
+            if (filePath.equals("")) {
+                filePath = fileName;
+            }
+            else {
+                filePath = filePath + "/" + fileName;
+            }
 
-            Snapshot snapshot = new Snapshot(files, dirs);
-            return snapshot;
-        }
-        catch (AmazonClientException ex) {
-            System.out.println("Failed to scan file space");
-            System.out.println(ex.getMessage());
+            String lmd = (pendingFile.meta == null)? null : pendingFile.meta.get().getUserMetaDataOf("lmd");
+            Date lastModified = (lmd == null)? objectSummary.getLastModified() : new Date(Long.parseLong(lmd));
+
+            FileSnapshot file = new FileSnapshot(fileName, objectSummary.getSize(), new DateTime(lastModified), filePath);
+            result.addFile(file);
         }
-        
-        return null;
+    }
+    
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = Math.max(1, scanThreads);
+    }
+
+    public void setScanMetadata(boolean scanMetadata) {
+        this.scanMetadata = scanMetadata;
+    }
+
+    public void setListThreads(int listThreads) {
+        this.listThreads = Math.max(1, listThreads);
     }
 
     @Override
@@ -218,7 +342,7 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
     public boolean writeFile(InputStream fileStream, FileSnapshot file) {
         if (fileStream == null) return false;
         
-        if (file.isLargeFile()) {
+        if (file.getFileSize() > multipartThreshold) {
             return writeLargeFile(fileStream, file);
         }
         
@@ -244,36 +368,32 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
             meta.getUserMetadata().put("lmd", file.getModifiedTimestamp().toDate().getTime() + "");
             meta.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
             
-            List<PartETag> partTags = new ArrayList<>();
-            String fileKey = toAbsoluteFilePath(file.getRelativePath());
+            final String fileKey = toAbsoluteFilePath(file.getRelativePath());
             
             InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, fileKey, meta);
-            InitiateMultipartUploadResult result = s3.initiateMultipartUpload(request);
+            final InitiateMultipartUploadResult result = s3.initiateMultipartUpload(request);
             
             long contentLength = file.getFileSize();
-            long partSize = 256 * 1024 * 1024;
+            int partSize = getPartSize(contentLength);
+            List<PartETag> partTags;
 
             try {
-                // Uploading the file, part by part.
-                long filePosition = 0;
-
-                for (int i = 1; filePosition < contentLength; i++) {
-                    
-                    partSize = Math.min(partSize, (contentLength - filePosition));
-
-                    // Creating the request for a part upload
-                    UploadPartRequest uploadRequest = new UploadPartRequest()
-                            .withBucketName(bucketName).withKey(fileKey)
-                            .withUploadId(result.getUploadId()).withPartNumber(i)
-                            .withInputStream(fileStream)
-                            .withPartSize(partSize);
-
-                    // Upload part and add response to the result list.
-                    partTags.add(s3.uploadPart(uploadRequest).getPartETag());
-                    filePosition += partSize;
-                    
-                    System.out.println("Uploaded " + Utils.readableFileSize(filePosition) + " out of " + Utils.readableFileSize(contentLength));
-                }
+                // Uploading the file, several parts at once
+                ChunkedUploader<PartETag> uploader = new ChunkedUploader<PartETag>(getUploadExecutor(), uploadThreads) {
+                    @Override
+                    protected PartETag uploadChunk(int partNumber, byte[] data, int length) {
+                        UploadPartRequest uploadRequest = new UploadPartRequest()
+                                .withBucketName(bucketName).withKey(fileKey)
+                                .withUploadId(result.getUploadId()).withPartNumber(partNumber)
+                                .withInputStream(new ByteArrayInputStream(data, 0, length))
+                                .withPartSize(length);
+                        
+                        return s3.uploadPart(uploadRequest).getPartETag();
+                    }
+                };
+                
+                System.out.println("Uploading " + Utils.readableFileSize(contentLength) + " in parts of " + Utils.readableFileSize(partSize));
+                partTags = uploader.upload(fileStream, contentLength, partSize);
             }         
             catch (Exception e) {
                 System.out.println("UploadPartRequest failed: " + e.getMessage());
@@ -288,9 +408,45 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
             return false;
 
         }
+        finally {
+            try {
+                fileStream.close();
+            }
+            catch (IOException ex) {
+                System.out.println("Failed to close stream: " + ex.getMessage());
+            }
+        }
         return true;
     }       
     
+    public void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = Math.max(MIN_PART_SIZE, multipartThreshold);
+    }
+
+    public void setPartSize(long partSize) {
+        this.partSize = Math.max(MIN_PART_SIZE, Math.min(MAX_PART_SIZE, partSize));
+    }
+
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = Math.max(1, uploadThreads);
+    }
+    
+    private int getPartSize(long contentLength) {
+        // Grow parts for very large files, so that the upload never goes over the parts limit
+        long minPartSize = (contentLength + MAX_PART_COUNT - 1) / MAX_PART_COUNT;
+        minPartSize = ((minPartSize + MB - 1) / MB) * MB;
+        
+        return (int)Math.min(MAX_PART_SIZE, Math.max(partSize, minPartSize));
+    }
+    
+    private synchronized ExecutorService getUploadExecutor() {
+        if (uploadExecutor == null) {
+            uploadExecutor = Utils.createExecutor("s3-upload", uploadThreads);
+        }
+        
+        return uploadExecutor;
+    }
+    
     @Override
     public boolean deleteFile(String path) {
         
@@ -304,6 +460,53 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
         return true;
     }
     
+    @Override
+    public Collection<String> deleteFiles(Collection<String> paths) {
+        
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (String path : paths) {
+            keys.put(toAbsoluteFilePath(path), path);
+        }
+        
+        return deleteObjects(keys);
+    }
+
+    @Override
+    public Collection<String> deleteDirectories(Collection<String> paths) {
+        
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (String path : paths) {
+            keys.put(toAbsoluteDirPath(trimPath(path)), path);
+        }
+        
+        return deleteObjects(keys);
+    }
+    
+    private Collection<String> deleteObjects(Map<String, String> keys) {
+        
+        List<String> failed = new ArrayList<>();
+        
+        for (List<String> batch : Iterables.partition(keys.keySet(), MAX_DELETE_BATCH_SIZE)) {
+            try {
+                s3.deleteObjects(new DeleteObjectsRequest(bucketName).withQuiet(true).withKeys(batch.toArray(new String[batch.size()])));
+            }
+            catch (MultiObjectDeleteException ex) {
+                for (MultiObjectDeleteException.DeleteError error : ex.getErrors()) {
+                    System.out.println(String.format("Failed to delete s3://%s/%s: %s", bucketName, error.getKey(), error.getMessage()));
+                    failed.add(keys.get(error.getKey()));
+                }
+            }
+            catch (AmazonClientException ex) {
+                System.out.println("Failed to delete batch: " + ex.getMessage());
+                for (String key : batch) {
+                    failed.add(keys.get(key));
+                }
+            }
+        }
+        
+        return failed;
+    }
+    
     @Override
     public boolean isMoveFileSupported() {
         return true;
@@ -325,6 +528,11 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
         
         return true;
     }
+
+    @Override
+    public Collection<String> moveFiles(Map<String, String> moves) {
+        return Utils.moveEach(this, moves);
+    }
  
     private AWSCredentials wrapCredentials(final String id, final String secret) {
         return new AWSCredentials() {
@@ -373,8 +581,8 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
         
         while ((objectListing == null) && (attemptCount < 3)) {
             try {
-                objectListing = s3.listObjects(listObjectsRequest);
                 attemptCount++;
+                objectListing = s3.listObjects(listObjectsRequest);
             }
             catch (AmazonClientException ex) {
                 if (attemptCount < 3) {
@@ -396,8 +604,8 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
         
         while ((meta == null) && (attemptCount < 3)) {
             try {
-                meta = s3.getObjectMetadata(bucketName, objectSummary.getKey());
                 attemptCount++;
+                meta = s3.getObjectMetadata(bucketName, objectSummary.getKey());
             }
             catch (AmazonClientException ex) {
                 if (attemptCount < 3) {
@@ -411,4 +619,63 @@ public class S3FileSpace extends FileSpace implements IScannableFileSpace, IRead
         
         return meta;
     }
+    
+    private static class PendingFile {
+        
+        private final S3ObjectSummary summary;
+        private final Future<ObjectMetadata> meta;
+        
+        public PendingFile(S3ObjectSummary summary, Future<ObjectMetadata> meta) {
+            this.summary = summary;
+            this.meta = meta;
+        }
+    }
+    
+    // Lists a single prefix. Prefixes too large for a single page are split by their subfolders,
+    // so that every worker lists its own part of the bucket
+    private class ShardTask extends RecursiveAction {
+        
+        private final String prefix;
+        private final PathFilter filters;
+        private final ScanResult.PerThread partials;
+        private final ExecutorService scanExecutor;
+        
+        public ShardTask(String prefix, PathFilter filters, ScanResult.PerThread partials, ExecutorService scanExecutor) {
+            this.prefix = prefix;
+            this.filters = filters;
+            this.partials = partials;
+            this.scanExecutor = scanExecutor;
+        }
+        
+        @Override
+        protected void compute() {
+            try {
+                ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+                .withBucketName(bucketName)
+                .withPrefix(prefix);
+
+                // Prefixes with excluded paths under them are always split, so that excluded subfolders are never listed
+                if (!hasExcludesUnder(prefix)) {
+                    ObjectListing firstPage = listObjects(listObjectsRequest);
+
+                    if (!firstPage.isTruncated()) {
+                        scanListing(listObjectsRequest, firstPage, filters, partials.get(), scanExecutor);
+                        return;
+                    }
+                }
+
+                listObjectsRequest.setDelimiter("/");
+                List<ShardTask> subtasks = new ArrayList<>();
+
+                for (String subprefix : withoutExcluded(scanListing(listObjectsRequest, null, filters, partials.get(), scanExecutor))) {
+                    subtasks.add(new ShardTask(subprefix, filters, partials, scanExecutor));
+                }
+
+                invokeAll(subtasks);
+            }
+            catch (InterruptedException | ExecutionException ex) {
+                throw new AmazonClientException("Failed to scan s3://" + bucketName + "/" + prefix, ex);
+            }
+        }
+    }
 }
@@ -0,0 +1,94 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync.fileviews;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.altoukhov.svsync.FileSnapshot;
+import com.altoukhov.svsync.Snapshot;
+import com.altoukhov.svsync.Utils;
+
+/**
+ * Entries of the previous scan, looked up by their folders, for an incremental rescan.
+ * Folders with the same modification time as in the previous scan are taken from here
+ * instead of being listed again. Files stay in the previous snapshot's columns, and only
+ * files of the folders reused are turned into objects.
+ *
+ * @author Alex Altoukhov
+ */
+class ScanHistory {
+
+    // Folders modified right before the scan may change again within the same timestamp tick
+    private static final long SETTLE_TIME = 2000;
+
+    private final long scanStart;
+    private final Snapshot previous;
+    private final Map<String, Long> directoryTimestamps;
+    private final Map<String, List<String>> foldersByParent = new HashMap<>();
+
+    public ScanHistory(Snapshot previous, long scanStart) {
+        this.scanStart = scanStart;
+
+        if ((previous == null) || (previous.getDirectoryTimestamps() == null)) {
+            this.previous = null;
+            this.directoryTimestamps = Collections.emptyMap();
+            return;
+        }
+
+        this.previous = previous;
+        this.directoryTimestamps = previous.getDirectoryTimestamps();
+
+        for (String dir : previous.getDirectories()) {
+            if (!dir.isEmpty()) {
+                add(foldersByParent, Utils.parentOf(dir), dir);
+            }
+        }
+    }
+
+    public boolean isUnchanged(String folder, long modifiedTime) {
+        Long previousTime = directoryTimestamps.get(folder);
+        return (previousTime != null) && (previousTime == modifiedTime);
+    }
+
+    // Listings of folders modified shortly before the scan started are not trusted by the next scan
+    public boolean isSettled(long modifiedTime) {
+        return modifiedTime < scanStart - SETTLE_TIME;
+    }
+
+    public List<FileSnapshot> getFiles(String folder) {
+        return (previous == null)? Collections.<FileSnapshot>emptyList() : previous.getFilesIn(folder);
+    }
+
+    public List<String> getFolders(String parent) {
+        List<String> folders = foldersByParent.get(parent);
+        return (folders == null)? Collections.<String>emptyList() : folders;
+    }
+
+    private static <T> void add(Map<String, List<T>> groups, String key, T value) {
+        List<T> group = groups.get(key);
+
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(key, group);
+        }
+
+        group.add(value);
+    }
+}
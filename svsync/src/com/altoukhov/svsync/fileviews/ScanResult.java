@@ -0,0 +1,116 @@
+/*
+Copyright 2015 Alex Altoukhov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package com.altoukhov.svsync.fileviews;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import com.altoukhov.svsync.FileSnapshot;
+import com.altoukhov.svsync.Snapshot;
+
+/**
+ * Collects files and directories found by a scan.
+ * Parallel scans give every worker thread its own partial result,
+ * so workers never contend, and merge the partials once at the end.
+ * Entries are passed to the listener as they are found, merging doesn't repeat them.
+ *
+ * @author Alex Altoukhov
+ */
+class ScanResult {
+
+    private final Map<String, FileSnapshot> files = new LinkedHashMap<>();
+    private final Set<String> dirs = new HashSet<>();
+    private final Map<String, Long> dirTimestamps = new HashMap<>();
+    private final IScanListener listener;
+
+    public ScanResult() {
+        this(null);
+    }
+
+    public ScanResult(IScanListener listener) {
+        this.listener = listener;
+    }
+
+    public void addFile(FileSnapshot file) {
+        files.put(file.getRelativePath(), file);
+        if (listener != null) listener.fileFound(file);
+    }
+
+    public boolean addDirectory(String dir) {
+        boolean isAdded = dirs.add(dir);
+        if (isAdded && (listener != null)) listener.directoryFound(dir);
+        return isAdded;
+    }
+
+    public void setDirectoryTimestamp(String dir, long timestamp) {
+        dirTimestamps.put(dir, timestamp);
+    }
+
+    public void merge(ScanResult other) {
+        files.putAll(other.files);
+        dirs.addAll(other.dirs);
+        dirTimestamps.putAll(other.dirTimestamps);
+    }
+
+    public Snapshot toSnapshot() {
+        Snapshot snapshot = new Snapshot(files, dirs);
+
+        if (!dirTimestamps.isEmpty()) {
+            snapshot.setDirectoryTimestamps(dirTimestamps);
+        }
+
+        return snapshot;
+    }
+
+    public static class PerThread {
+
+        private final ConcurrentMap<Thread, ScanResult> partials = new ConcurrentHashMap<>();
+        private final IScanListener listener;
+
+        public PerThread() {
+            this(null);
+        }
+
+        public PerThread(IScanListener listener) {
+            this.listener = listener;
+        }
+
+        public ScanResult get() {
+            ScanResult partial = partials.get(Thread.currentThread());
+
+            if (partial == null) {
+                partial = new ScanResult(listener);
+                partials.put(Thread.currentThread(), partial);
+            }
+
+            return partial;
+        }
+
+        public ScanResult merge(ScanResult result) {
+            for (ScanResult partial : partials.values()) {
+                result.merge(partial);
+            }
+
+            partials.clear();
+            return result;
+        }
+    }
+}
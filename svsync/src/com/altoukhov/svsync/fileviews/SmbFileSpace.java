@@ -20,22 +20,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Stack;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import jcifs.smb.NtlmPasswordAuthentication;
 import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
 import jcifs.smb.SmbFileFilter;
 import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
+import com.altoukhov.svsync.BufferPool;
 import com.altoukhov.svsync.FileSnapshot;
 import com.altoukhov.svsync.Snapshot;
+import com.altoukhov.svsync.Utils;
 
 /**
  * @author Alex Altoukhov
@@ -45,6 +47,7 @@ public class SmbFileSpace extends FileSpace implements IScannableFileSpace, IRea
     private final NtlmPasswordAuthentication auth;
     private String rootPath;
     private String rootSuffix = "";
+    private int scanThreads = 1;
         
     private SmbFileSpace(String root, String domain, String user, String password) {
         
@@ -98,45 +101,46 @@ public class SmbFileSpace extends FileSpace implements IScannableFileSpace, IRea
         return false;
     }
     
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = Math.max(1, scanThreads);
+    }
+    
     @Override
-    protected Snapshot scan(List<Pattern> filters) {
+    protected Snapshot scan(PathFilter filters) {
         try {
-            Map<String, FileSnapshot> files = new LinkedHashMap<>();
-            Set<String> dirs = new HashSet<>();
+            ScanResult result = new ScanResult(scanListener);
 
             SmbFile root = new SmbFile(rootPath, auth);
             if (root.exists()) {
 
-                Stack<SmbFile> stack = new Stack<>();
-                stack.push(root);
-                dirs.add("");
-
-                while (!stack.isEmpty()) {
-                    SmbFile currentFolder = stack.pop();
+                result.addDirectory("");
+                
+                if (scanThreads > 1) {
+                    ScanResult.PerThread partials = new ScanResult.PerThread(scanListener);
+                    ForkJoinPool pool = new ForkJoinPool(scanThreads);
                     
-                    for (final SmbFile file : listFiles(currentFolder)) {
-                        
-                        String path = file.getPath();
-                        
-                        boolean isFile = isFile(file);
-                        boolean isDirectory = isDirectory(file);
-                        
-                        if (isFile && !isExcluded(path) && !isFiltered(toRelativePath(path), filters)) {
-                            FileSnapshot fileSnapshot = createFileSnapshot(file, path);
-                            files.put(fileSnapshot.getRelativePath(), fileSnapshot);
-                        }
-                        else if (isDirectory && !isExcluded(path) && !isFiltered(toRelativePath(path, true), filters)) {
-                            stack.push(file);
-                            dirs.add(toRelativePath(path));
-                            System.out.println("Scanning " + path);
-                        }
+                    try {
+                        pool.invoke(new ScanTask(root, filters, partials));
+                    }
+                    finally {
+                        pool.shutdown();
+                    }
+                    
+                    partials.merge(result);
+                }
+                else {
+                    Stack<SmbFile> stack = new Stack<>();
+                    stack.push(root);
+
+                    while (!stack.isEmpty()) {
+                        stack.addAll(scanDirectory(stack.pop(), filters, result));
                     }
                 }
             }        
-            Snapshot snapshot = new Snapshot(files, dirs);
-            return snapshot;
+            
+            return result.toSnapshot();
         }
-        catch (MalformedURLException | SmbException ex) {
+        catch (MalformedURLException | SmbException | ScanException ex) {
             System.out.println("Failed to scan file space");
             System.out.println(ex.getMessage());
             System.out.println(ex);
@@ -145,6 +149,29 @@ public class SmbFileSpace extends FileSpace implements IScannableFileSpace, IRea
         return null;
     }
     
+    // Adds files of a single folder to the result, and returns its subfolders that need to be scanned
+    private List<SmbFile> scanDirectory(SmbFile folder, PathFilter filters, ScanResult result) throws SmbException {
+        
+        List<SmbFile> subfolders = new ArrayList<>();
+        
+        for (Entry entry : listEntries(folder)) {
+
+            String path = entry.file.getPath();
+
+            if (entry.isFile && !isExcluded(path) && !isFiltered(toRelativePath(path), filters)) {
+                FileSnapshot fileSnapshot = new FileSnapshot(entry.file.getName(), entry.length, new DateTime(new Date(entry.lastModified)), toRelativePath(path));
+                result.addFile(fileSnapshot);
+            }
+            else if (entry.isDirectory && !isExcluded(path) && !isFiltered(toRelativePath(path, true), filters)) {
+                subfolders.add(entry.file);
+                result.addDirectory(toRelativePath(path));
+                System.out.println("Scanning " + path);
+            }
+        }
+        
+        return subfolders;
+    }
+    
     @Override
     public InputStream readFile(String path) {
         
@@ -200,6 +227,16 @@ public class SmbFileSpace extends FileSpace implements IScannableFileSpace, IRea
         }
     }
 
+    @Override
+    public Collection<String> deleteFiles(Collection<String> paths) {
+        return Utils.deleteEach(this, paths, false);
+    }
+
+    @Override
+    public Collection<String> deleteDirectories(Collection<String> paths) {
+        return Utils.deleteEach(this, paths, true);
+    }
+
     @Override
     public boolean isMoveFileSupported() {
         return true;
@@ -221,12 +258,18 @@ public class SmbFileSpace extends FileSpace implements IScannableFileSpace, IRea
         return true;
     }
 
+    @Override
+    public Collection<String> moveFiles(Map<String, String> moves) {
+        return Utils.moveEach(this, moves);
+    }
+
     @Override
     public boolean writeFile(InputStream fileStream, FileSnapshot fileInfo) {
         
         if (fileStream == null) return false;
         
         OutputStream out = null;
+        byte[] buffer = null;
         long bytesWritten = 0;
         boolean setTimestamp = false;
         
@@ -238,17 +281,19 @@ public class SmbFileSpace extends FileSpace implements IScannableFileSpace, IRea
                 System.out.println("Failed to open file for write: " + fileInfo.getRelativePath());
             }
                 
-            if (fileInfo.isLargeFile()) {
-                bytesWritten = IOUtils.copyLarge(fileStream, out);
-            }
-            else {
-                bytesWritten = IOUtils.copy(fileStream, out);
-            }            
+            buffer = BufferPool.getShared().acquire(BufferPool.COPY_BUFFER_SIZE);
+            bytesWritten = IOUtils.copyLarge(fileStream, out, buffer);
         }
         catch (IOException ex) {
             System.out.println("Failed to copy file: " + ex.getMessage());
         }
+        catch (InterruptedException ex) {
+            System.out.println("Copy was interrupted: " + ex.getMessage());
+            Thread.currentThread().interrupt();
+        }
         finally {
+            BufferPool.getShared().release(buffer);
+            
             try {
                 if (fileStream != null) fileStream.close();
                 if (out != null) out.close();
@@ -270,114 +315,42 @@ public class SmbFileSpace extends FileSpace implements IScannableFileSpace, IRea
         return setTimestamp && (bytesWritten == fileInfo.getFileSize());        
     }
 
-    private final static SmbFileFilter filter = new SmbFileFilter() {
-
-        @Override
-        public boolean accept(SmbFile file) throws SmbException {
-            return !file.isHidden();
-        }
-    };
-    
-    private SmbFile[] listFiles(SmbFile folder) throws SmbException {
-        
-        SmbFile[] files = null;
-        int attemptCount = 0;
-        
-        while ((files == null) && (attemptCount < 3)) {
-            try {
-                attemptCount++;
-                files = folder.listFiles(filter);
-            }
-            catch (SmbException ex) {
-                if (attemptCount < 3) {
-                    System.out.println("Failed to list files for " + folder.getPath() + ", retrying.");
-                }
-                else {
-                    throw ex;
-                }
-            }
-        }
-        
-        return files;
-    }
-    
-    private Boolean isFile(final SmbFile file) throws SmbException {
-        
-        Boolean isFile = null;        
-        int attemptCount = 0;
-        
-        while ((isFile == null) && (attemptCount < 3)) {
-            try {
-                isFile = file.isFile();
-                attemptCount++;
-            }
-            catch (SmbException ex) {
-                if (attemptCount < 3) {
-                    System.out.println("Failed to query file " + file.getPath() + ", retrying.");
-                }
-                else {
-                    throw ex;
-                }
-            }
-        }
-        
-        return isFile;
-    }
-
-    private Boolean isDirectory(final SmbFile file) throws SmbException {
-        
-        Boolean isDirectory = null;
-        int attemptCount = 0;
-        
-        while ((isDirectory == null) && (attemptCount < 3)) {
-            try {
-                isDirectory = file.isDirectory();
-                attemptCount++;
-            }
-            catch (SmbException ex) {
-                if (attemptCount < 3) {
-                    System.out.println("Failed to query file " + file.getPath() + ", retrying.");
-                }
-                else {
-                    throw ex;
+    // Lists visible entries of the folder with their attributes
+    private List<Entry> listEntries(SmbFile folder) throws SmbException {
+        
+        final List<Entry> entries = new ArrayList<>();
+        
+        // Every listed file comes with its attributes, which are cached only for a short time after the listing.
+        // Reading them while the listing is processed saves a round trip per file
+        SmbFileFilter collector = new SmbFileFilter() {
+            @Override
+            public boolean accept(SmbFile file) throws SmbException {
+                if (!file.isHidden()) {
+                    entries.add(new Entry(file));
                 }
+                
+                return false;
             }
-        }
-        
-        return isDirectory;
-    }
-
-    private FileSnapshot createFileSnapshot(final SmbFile file, String path) throws SmbException {
-        
-        Long modifiedDate = null;
-        Long length = null;
+        };
         
         int attemptCount = 0;
         
-        while (((modifiedDate == null) || (length == null)) && (attemptCount < 3)) {
+        while (true) {
             try {
-                
-                if (modifiedDate == null) {
-                    modifiedDate = file.lastModified();
-                    attemptCount = 0;
-                }
-                if (length == null) {
-                    length = file.length();
-                }
-                
                 attemptCount++;
+                entries.clear();
+                folder.listFiles(collector);
+                return entries;
             }
             catch (SmbException ex) {
                 if (attemptCount < 3) {
-                    System.out.println("Failed to query file " + file.getPath() + ", retrying.");
+                    System.out.println("Failed to list files for " + folder.getPath() + ", retrying.");
                 }
                 else {
                     throw ex;
                 }
             }
         }
-        
-        return new FileSnapshot(file.getName(), length, new DateTime(new Date(modifiedDate)), toRelativePath(path));
     }
     
     private String toRelativePath(String absolutePath) {
@@ -406,4 +379,58 @@ public class SmbFileSpace extends FileSpace implements IScannableFileSpace, IRea
     private String toAbsoluteFilePath(String relativePath) {
         return String.format("%s%s", rootPath, relativePath);
     }
+    
+    private static class Entry {
+        
+        private final SmbFile file;
+        private final boolean isFile;
+        private final boolean isDirectory;
+        private final long lastModified;
+        private final long length;
+        
+        public Entry(SmbFile file) throws SmbException {
+            this.file = file;
+            this.isFile = file.isFile();
+            this.isDirectory = file.isDirectory();
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+    }
+    
+    private static class ScanException extends RuntimeException {
+        
+        public ScanException(SmbException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+    
+    private class ScanTask extends RecursiveAction {
+        
+        private final SmbFile folder;
+        private final PathFilter filters;
+        private final ScanResult.PerThread partials;
+        
+        public ScanTask(SmbFile folder, PathFilter filters, ScanResult.PerThread partials) {
+            this.folder = folder;
+            this.filters = filters;
+            this.partials = partials;
+        }
+        
+        @Override
+        protected void compute() {
+            List<ScanTask> subtasks = new ArrayList<>();
+            
+            try {
+                for (SmbFile subfolder : scanDirectory(folder, filters, partials.get())) {
+                    subtasks.add(new ScanTask(subfolder, filters, partials));
+                }
+            }
+            catch (SmbException ex) {
+                throw new ScanException(ex);
+            }
+            
+            // Idle workers steal subfolders from busy ones, so at most scanThreads requests are sent at once
+            invokeAll(subtasks);
+        }
+    }
 }